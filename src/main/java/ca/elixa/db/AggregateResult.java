@@ -0,0 +1,80 @@
+package ca.elixa.db;
+
+import org.bson.Document;
+
+/**
+ * A single group from {@link DBService#runAggregation(Aggregation)}: the values it was grouped by, and its
+ * accumulated values.
+ *
+ * @author Evan
+ *
+ */
+public class AggregateResult {
+	private final Aggregation aggregation;
+	private final Document raw;
+
+	protected AggregateResult(Aggregation aggregation, Document raw) {
+		this.aggregation = aggregation;
+		this.raw = raw;
+	}
+
+	/**
+	 * @param field - a field the aggregation grouped by
+	 * @return this group's value for it
+	 */
+	public Object getGroup(String field) {
+		Document id = raw.get("_id", Document.class);
+
+		return id == null ? null : id.get(aggregation.groupKey(field));
+	}
+
+	public <V> V getGroup(String field, Class<V> clazz) {
+		return clazz.cast(getGroup(field));
+	}
+
+	/**
+	 * @param alias - an accumulator alias
+	 * @return the accumulated value, or null if there was nothing to accumulate (ie. the max of a missing field)
+	 */
+	public Object getValue(String alias) {
+		return raw.get(alias);
+	}
+
+	public <V> V getValue(String alias, Class<V> clazz) {
+		return clazz.cast(getValue(alias));
+	}
+
+	/**
+	 * Sums come back as ints, longs or doubles depending on their size and inputs; this reads any of them.
+	 * @param alias
+	 * @return the value as a long, or null
+	 */
+	public Long getLong(String alias) {
+		Number value = getNumber(alias);
+
+		return value == null ? null : value.longValue();
+	}
+
+	public Double getDouble(String alias) {
+		Number value = getNumber(alias);
+
+		return value == null ? null : value.doubleValue();
+	}
+
+	private Number getNumber(String alias) {
+		Object value = raw.get(alias);
+
+		if(value == null)
+			return null;
+
+		if(false == value instanceof Number)
+			throw new ClassCastException(alias + " is not a number, it is " + value.getClass().getSimpleName());
+
+		return (Number) value;
+	}
+
+	@Override
+	public String toString() {
+		return raw.toJson();
+	}
+}
@@ -0,0 +1,174 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Describes a group by, computed on the server. The sibling of {@link Query}, for when only totals are needed.
+ *
+ * <pre>
+ * //the 10 guilds with the most gold among active players
+ * Aggregation a = new Aggregation("Player")
+ *     .addFilter("active", FilterOperator.EQUAL, true)
+ *     .groupBy("guild")
+ *     .sum("gold", "gold")
+ *     .count("players")
+ *     .addSort("gold", false)
+ *     .setLimit(10);
+ *
+ * for(AggregateResult r : db.runAggregation(a))
+ *     r.getGroup("guild") ... r.getLong("gold") ...
+ * </pre>
+ *
+ * Without a groupBy, the whole matching collection is one group.
+ *
+ * @author Evan
+ *
+ */
+public class Aggregation {
+	public enum Operator {
+		SUM, AVG, MIN, MAX, COUNT
+	}
+
+	protected List<Filter> filters = new ArrayList<>();
+	protected List<String> groupBy = new ArrayList<>();
+	protected LinkedHashMap<String, Pair<Operator, String>> accumulators = new LinkedHashMap<>(); //alias -> operator, field
+	protected LinkedHashMap<String, Boolean> sorts = new LinkedHashMap<>(); //alias or grouped field -> ascending
+
+	private final String type;
+	private int limit = 0;
+	private boolean allowDiskUse = false;
+
+	public Aggregation(String type) {
+		this.type = type;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Only documents that pass every filter are grouped. See {@link Query#addFilter(String, FilterOperator, Object)}
+	 * @param propertyName
+	 * @param operator
+	 * @param value
+	 * @return itself
+	 */
+	public Aggregation addFilter(String propertyName, FilterOperator operator, Object value) {
+		return addFilter(Filter.of(propertyName, operator, value));
+	}
+
+	public Aggregation addFilter(Filter filter) {
+		filters.add(filter);
+
+		return this;
+	}
+
+	/**
+	 * Group by one or more fields. Dotted paths are allowed.
+	 * @param fields
+	 * @return itself
+	 */
+	public Aggregation groupBy(String...fields) {
+		Collections.addAll(groupBy, fields);
+
+		return this;
+	}
+
+	public Aggregation sum(String alias, String field) {
+		return accumulate(alias, Operator.SUM, field);
+	}
+
+	public Aggregation avg(String alias, String field) {
+		return accumulate(alias, Operator.AVG, field);
+	}
+
+	public Aggregation min(String alias, String field) {
+		return accumulate(alias, Operator.MIN, field);
+	}
+
+	public Aggregation max(String alias, String field) {
+		return accumulate(alias, Operator.MAX, field);
+	}
+
+	/**
+	 * Count the documents in each group.
+	 * @param alias
+	 * @return itself
+	 */
+	public Aggregation count(String alias) {
+		return accumulate(alias, Operator.COUNT, null);
+	}
+
+	/**
+	 * @param alias - the name the result is read back with. Can't contain dots, or start with $.
+	 * @param operator
+	 * @param field - the field being accumulated
+	 * @return itself
+	 */
+	public Aggregation accumulate(String alias, Operator operator, String field) {
+		if(alias.isEmpty() || alias.equals("_id") || alias.indexOf('.') >= 0 || alias.startsWith("$"))
+			throw new IllegalArgumentException("Invalid aggregation alias " + alias);
+
+		accumulators.put(alias, new Pair<>(operator, field));
+
+		return this;
+	}
+
+	/**
+	 * Sort the groups. Sorts apply in the order they were added.
+	 * @param name - an accumulator alias, or a grouped field
+	 * @param ascending
+	 * @return itself
+	 */
+	public Aggregation addSort(String name, boolean ascending) {
+		sorts.put(name, ascending);
+
+		return this;
+	}
+
+	/**
+	 * Together with a sort, this gives the top N groups.
+	 * @param limit - the max number of groups. 0 means no limit.
+	 * @return itself
+	 */
+	public Aggregation setLimit(int limit) {
+		this.limit = limit;
+
+		return this;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Let the server spill to disk when grouping more than fits in its memory limit.
+	 * @param allowDiskUse
+	 * @return itself
+	 */
+	public Aggregation setAllowDiskUse(boolean allowDiskUse) {
+		this.allowDiskUse = allowDiskUse;
+
+		return this;
+	}
+
+	public boolean isAllowDiskUse() {
+		return allowDiskUse;
+	}
+
+	/**
+	 * @param field - a grouped field
+	 * @return the name the field's value is stored under in a result's _id
+	 */
+	protected String groupKey(String field) {
+		int index = groupBy.indexOf(field);
+
+		if(index < 0)
+			throw new IllegalArgumentException(field + " is not grouped by, expected one of " + groupBy);
+
+		return "g" + index;
+	}
+}
@@ -0,0 +1,557 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.AggregatePublisher;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+
+/**
+ * A non blocking mirror of {@link DBService}, for use on the Vert.x event loop. Every call returns a Future that is
+ * completed on the calling context.
+ *
+ * Entities are built by the wrapped DBService, through the same {@link EntityFactory}, so entity subclasses work
+ * unchanged with both. Note that entity helpers which load other entities (ie. getEntityFromKeyValue) still go
+ * through the blocking DBService.
+ *
+ * The entity cache, identity map and bulk write settings of the wrapped DBService apply here too.
+ *
+ * @author Evan
+ *
+ */
+public class AsyncDBService {
+	protected final DBService sync;
+	private final Vertx vertx;
+	protected final MongoDatabase db;
+
+	/**
+	 * @param vertx
+	 * @param client - a reactive streams client, pointed at the same deployment as the DBService's
+	 * @param sync - the blocking service that builds our entities
+	 */
+	public AsyncDBService(Vertx vertx, MongoClient client, DBService sync) {
+		this.vertx = vertx;
+		this.sync = sync;
+		this.db = client.getDatabase(sync.getDBName());
+	}
+
+	public DBService getBlocking() {
+		return sync;
+	}
+
+	public <T extends Entity> T createEntity(String type) {
+		return sync.createEntity(type);
+	}
+
+	/**
+	 * Fetch a single entity from a key.
+	 * @param key
+	 * @return the entity, or null if it doesn't exist
+	 */
+	public <T extends Entity> Future<T> getEntity(Key key) {
+		IdentityMap map = sync.getIdentityMap();
+		if(map != null) {
+			T loaded = map.get(key);
+			if(loaded != null)
+				return Future.succeededFuture(loaded);
+		}
+
+		EntityCache cache = sync.getEntityCache();
+		Document cached = cache == null ? null : cache.get(key);
+		if(cached != null)
+			return Future.succeededFuture(sync.buildFetchedEntity(key.getType(), cached, null));
+
+		long stamp = cache == null ? 0 : cache.stamp();
+		Future<Document> fetched;
+
+		BatchLoader loader = batchLoader();
+		if(loader != null)
+			fetched = Future.fromCompletionStage(loader.load(key), context());
+		else
+			fetched = ReactiveFutures.first(context(), db.getCollection(key.getType()).find(BsonService.getFilterForKey(key)).first());
+
+		return fetched.map(doc -> {
+			if(doc == null)
+				return null;
+
+			if(cache != null)
+				cache.populate(key, doc, stamp);
+
+			return sync.buildFetchedEntity(key.getType(), doc, null);
+		});
+	}
+
+	/**
+	 * Fetch a list of entities from a list of keys. Each type is fetched concurrently.
+	 * @param keys
+	 * @return the entities that exist, in the order of the given keys
+	 */
+	public <T extends Entity> Future<List<T>> getEntities(Iterable<Key> keys) {
+		IdentityMap map = sync.getIdentityMap();
+		EntityCache cache = sync.getEntityCache();
+		Map<Key, T> found = new HashMap<>();
+		List<Key> missing = new ArrayList<>();
+
+		for(Key key : keys) {
+			if(key == null)
+				continue;
+
+			T loaded = map == null ? null : map.get(key);
+			if(loaded != null) {
+				found.put(key, loaded);
+				continue;
+			}
+
+			Document cached = cache == null ? null : cache.get(key);
+
+			if(cached != null)
+				found.put(key, sync.buildFetchedEntity(key.getType(), cached, null));
+			else
+				missing.add(key);
+		}
+
+		long stamp = cache == null ? 0 : cache.stamp();
+
+		return fetchRawByKeys(missing).map(fetched -> {
+			for(Entry<Key, Document> entry : fetched.entrySet()) {
+				Key key = entry.getKey();
+
+				if(cache != null)
+					cache.populate(key, entry.getValue(), stamp);
+
+				found.put(key, sync.buildFetchedEntity(key.getType(), entry.getValue(), null));
+			}
+
+			List<T> result = new ArrayList<>();
+
+			for(Key key : keys) {
+				T ent = key == null ? null : found.get(key);
+				if(ent != null)
+					result.add(ent);
+			}
+
+			return result;
+		});
+	}
+
+	/**
+	 * Fetch the raw documents for a list of keys, with one concurrent $in per type.
+	 * @param keys
+	 * @return key -> document, for every key that exists
+	 */
+	@SuppressWarnings("rawtypes")
+	protected Future<Map<Key, Document>> fetchRawByKeys(List<Key> keys) {
+		Context context = context();
+		Map<Key, Document> result = new HashMap<>();
+		List<Future> futures = new ArrayList<>();
+
+		for(Entry<String, List<Key>> entry : sync.sortKeysByType(keys).entrySet()) {
+			String type = entry.getKey();
+			List<ObjectId> ids = new ArrayList<>();
+
+			for(Key key : entry.getValue())
+				ids.add(key.toObjectId());
+
+			FindPublisher<Document> find = db.getCollection(type).find(Filters.in("_id", ids));
+
+			futures.add(ReactiveFutures.collect(context, find).onSuccess(docs -> {
+				for(Document doc : docs)
+					result.put(new Key(type, doc.getObjectId("_id")), doc);
+			}));
+		}
+
+		return CompositeFuture.all(futures).map(done -> result);
+	}
+
+	private volatile boolean batchLoading = false;
+	private final Object batchLoaderKey = new Object(); //where a context keeps our loader, see batchLoader
+
+	/**
+	 * Coalesce getEntity calls made during the same event loop tick. They are queued, and sent as one $in per type
+	 * once the current task on the context finishes.
+	 *
+	 * Each Vert.x context gets its own loader. Requests handled on their own (duplicated) context, like HTTP
+	 * requests, are therefore batched separately from each other.
+	 */
+	public void enableBatchLoading() {
+		batchLoading = true;
+	}
+
+	public void disableBatchLoading() {
+		batchLoading = false;
+	}
+
+	/**
+	 * @return the loader for the current context, or null if batch loading is off
+	 */
+	private BatchLoader batchLoader() {
+		if(false == batchLoading)
+			return null;
+
+		Context context = context();
+		BatchLoader loader = context.getLocal(batchLoaderKey);
+
+		if(loader == null) {
+			loader = new BatchLoader(
+					keys -> fetchRawByKeys(keys).toCompletionStage(),
+					dispatch -> context.runOnContext(v -> dispatch.run()));
+			context.putLocal(batchLoaderKey, loader);
+		}
+
+		return loader;
+	}
+
+	/**
+	 * Save a single entity. Fails with the driver's exception if the write fails, or with an
+	 * {@link OptimisticLockException} if the entity's type is versioned and it was saved by someone else since.
+	 * @param ent
+	 * @return
+	 */
+	public Future<Void> put(Entity ent) {
+		boolean isNew = ent.isNew();
+		WriteModel<Document> model = sync.getWriteModel(ent);
+
+		if(model == null)
+			return Future.succeededFuture();
+
+		return ReactiveFutures.first(context(), db.getCollection(ent.getType()).bulkWrite(List.of(model)))
+				.map(written -> {
+					if(false == isNew)
+						sync.checkVersion(ent, written.getMatchedCount());
+
+					sync.onSaved(ent);
+					return null;
+				});
+	}
+
+	public Future<BulkPutResult> put(Entity...entities) {
+		return put(Arrays.asList(entities));
+	}
+
+	/**
+	 * Save a list of entities. Each type is written concurrently, in chunked bulkWrites.
+	 * Failures do not fail the future, check the returned result.
+	 * @param ents
+	 * @return a per-entity report of what was written
+	 */
+	@SuppressWarnings("rawtypes")
+	public <T extends Entity> Future<BulkPutResult> put(Iterable<T> ents) {
+		Context context = context();
+		BulkPutResult result = new BulkPutResult();
+		List<Future> futures = new ArrayList<>();
+
+		for(Entry<String, List<T>> entry : sync.sortEntitiesByType(ents).entrySet()) {
+			Future<Void> chain = Future.succeededFuture();
+
+			List<Entity> batch = new ArrayList<>();
+			List<WriteModel<Document>> models = new ArrayList<>();
+
+			for(T ent : entry.getValue()) {
+				WriteModel<Document> model = sync.getWriteModel(ent);
+
+				if(model == null) {
+					result.addSkipped(ent);
+					continue;
+				}
+
+				batch.add(ent);
+				models.add(model);
+
+				if(models.size() >= sync.getBulkWriteChunkSize()) {
+					chain = chainBulkWrite(context, chain, entry.getKey(), batch, models, result);
+					batch = new ArrayList<>();
+					models = new ArrayList<>();
+				}
+			}
+
+			if(models.size() > 0)
+				chain = chainBulkWrite(context, chain, entry.getKey(), batch, models, result);
+
+			futures.add(chain);
+		}
+
+		return CompositeFuture.all(futures).map(done -> {
+			for(Entity ent : result.getSucceeded())
+				sync.onSaved(ent);
+
+			sync.onVersionConflicts(result);
+
+			return result;
+		});
+	}
+
+	/**
+	 * Queue a bulkWrite after the previous chunk of the same type. The returned future never fails, errors are
+	 * recorded in the result.
+	 */
+	private Future<Void> chainBulkWrite(Context context, Future<Void> previous, String type, List<Entity> batch,
+										List<WriteModel<Document>> models, BulkPutResult result) {
+		BulkWriteOptions options = new BulkWriteOptions().ordered(sync.isOrderedBulkWrites());
+
+		return previous.compose(v -> ReactiveFutures.first(context, db.getCollection(type).bulkWrite(models, options))
+				.transform(written -> {
+					//a versioned save that matched nothing lost a race; find out which
+					if(written.succeeded() && sync.hasVersionConflicts(batch, written.result()))
+						return resolveVersionConflicts(context, type, batch, result);
+
+					if(written.succeeded()) {
+						for(Entity ent : batch)
+							result.addSucceeded(ent);
+					}
+					else if(written.cause() instanceof MongoException e) {
+						List<Entity> unresolved = sync.recordBulkWriteError(batch, e, result);
+
+						if(false == unresolved.isEmpty())
+							return resolveVersionConflicts(context, type, unresolved, result);
+					}
+					else {
+						for(Entity ent : batch)
+							result.addFailure(ent, -1, String.valueOf(written.cause()));
+					}
+
+					return Future.<Void>succeededFuture();
+				}));
+	}
+
+	/**
+	 * Read back the versions of a versioned bulkWrite's documents, and record which of its saves went through. The
+	 * returned future never fails.
+	 * @param ents - the entities whose writes were sent without an error
+	 */
+	private Future<Void> resolveVersionConflicts(Context context, String type, List<Entity> ents, BulkPutResult result) {
+		FindPublisher<Document> stored = db.getCollection(type).find(sync.getFilterForKeys(ents))
+				.projection(Projections.include(Entity.VERSION_FIELD));
+
+		return ReactiveFutures.collect(context, stored)
+				.map(docs -> {
+					sync.recordVersionConflicts(ents, docs, result);
+					return (Void) null;
+				})
+				.otherwise(e -> {
+					for(Entity ent : ents)
+						result.addFailure(ent, -1, String.valueOf(e));
+					return null;
+				});
+	}
+
+	public Future<Void> delete(Key key) {
+		return delete(List.of(key));
+	}
+
+	public Future<Void> delete(Key...keys) {
+		return delete(Arrays.asList(keys));
+	}
+
+	/**
+	 * Delete a collection of entities by their key. Each type is deleted concurrently, with a single deleteMany.
+	 * @param keys
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	public Future<Void> delete(Iterable<Key> keys) {
+		Context context = context();
+		List<Future> futures = new ArrayList<>();
+
+		for(Entry<String, List<Key>> entry : sync.sortKeysByType(keys).entrySet()) {
+			List<ObjectId> ids = new ArrayList<>();
+
+			for(Key key : entry.getValue())
+				ids.add(key.toObjectId());
+
+			futures.add(ReactiveFutures.first(context, db.getCollection(entry.getKey()).deleteMany(Filters.in("_id", ids)))
+					.onSuccess(deleted -> entry.getValue().forEach(sync::onDeleted)));
+		}
+
+		return CompositeFuture.all(futures).mapEmpty();
+	}
+
+	public <T extends Entity> Future<List<T>> runEntityQuery(Query q) {
+		Bson filter = BsonService.generateCompositeFilter(q.filters, sync::parseValue);
+
+		FindPublisher<Document> find = db.getCollection(q.getType()).find(filter)
+				.projection(BsonService.generateProjections(q.projections));
+
+		Bson sorts = BsonService.generateSorts(q.sorts);
+		if(sorts != null)
+			find = find.sort(sorts);
+
+		if(q.getSkip() > 0)
+			find = find.skip(q.getSkip());
+
+		if(q.getLimit() > 0)
+			find = find.limit(q.getLimit());
+
+		int batchSize = q.getBatchSize() > 0 ? q.getBatchSize() : sync.getCursorBatchSize();
+		if(batchSize > 0)
+			find = find.batchSize(batchSize);
+
+		Set<String> projected = q.projections.isEmpty() ? null : q.projections;
+
+		return ReactiveFutures.collect(context(), find).map(docs -> {
+			List<T> result = new ArrayList<>();
+
+			for(Document doc : docs)
+				result.add(sync.buildFetchedEntity(q.getType(), doc, projected));
+
+			return result;
+		});
+	}
+
+	public Future<Long> runCount(Query q) {
+		Bson filters = BsonService.generateCompositeFilter(q.filters, sync::parseValue);
+
+		return ReactiveFutures.first(context(), db.getCollection(q.getType()).countDocuments(filters));
+	}
+
+	/**
+	 * See {@link DBService#exists(Key)}
+	 * @param key
+	 * @return true if an entity exists for the given key.
+	 */
+	public Future<Boolean> exists(Key key) {
+		IdentityMap map = sync.getIdentityMap();
+		if(map != null && map.contains(key))
+			return Future.succeededFuture(true);
+
+		EntityCache cache = sync.getEntityCache();
+		if(cache != null && cache.get(key) != null)
+			return Future.succeededFuture(true);
+
+		return existsInternal(key.getType(), BsonService.getFilterForKey(key));
+	}
+
+	public Future<Boolean> exists(Query q) {
+		return existsInternal(q.getType(), BsonService.generateCompositeFilter(q.filters, sync::parseValue));
+	}
+
+	private Future<Boolean> existsInternal(String type, Bson filter) {
+		FindPublisher<Document> find = db.getCollection(type).find(filter)
+				.projection(Projections.include("_id"))
+				.limit(1);
+
+		return ReactiveFutures.first(context(), find.first()).map(doc -> doc != null);
+	}
+
+	/**
+	 * See {@link DBService#countAtLeast(Query, long)}
+	 * @param q
+	 * @param n
+	 * @return true if at least n documents match
+	 */
+	public Future<Boolean> countAtLeast(Query q, long n) {
+		if(n <= 0)
+			return Future.succeededFuture(true);
+
+		Bson filter = BsonService.generateCompositeFilter(q.filters, sync::parseValue);
+		CountOptions options = new CountOptions().limit((int) Math.min(n, Integer.MAX_VALUE));
+
+		return ReactiveFutures.first(context(), db.getCollection(q.getType()).countDocuments(filter, options))
+				.map(count -> count >= n);
+	}
+
+	public Future<Long> estimatedCount(String type) {
+		return ReactiveFutures.first(context(), db.getCollection(type).estimatedDocumentCount());
+	}
+
+	public Future<List<AggregateResult>> runAggregation(Aggregation a) {
+		List<Bson> pipeline = BsonService.generatePipeline(a, sync::parseValue);
+
+		AggregatePublisher<Document> aggregate = db.getCollection(a.getType()).aggregate(pipeline).allowDiskUse(a.isAllowDiskUse());
+
+		return ReactiveFutures.collect(context(), aggregate).map(docs -> {
+			List<AggregateResult> result = new ArrayList<>();
+
+			for(Document doc : docs)
+				result.add(new AggregateResult(a, doc));
+
+			return result;
+		});
+	}
+
+	public Future<Void> runUpdate(Query q) {
+		Bson filters = BsonService.generateCompositeFilter(q.filters, sync::parseValue);
+		Bson updates = BsonService.generateUpdates(q.updates, sync::parseValue);
+
+		UpdateOptions options = new UpdateOptions().upsert(q.isUpsert());
+
+		return ReactiveFutures.first(context(), db.getCollection(q.getType()).updateMany(filters, updates, options))
+				.map(updated -> {
+					sync.onTypeModified(q.getType());
+					return null;
+				});
+	}
+
+	/**
+	 * See {@link DBService#findOneAndUpdate(Query)}
+	 * @param q
+	 * @return the updated entity, or null if nothing matched and the query doesn't upsert
+	 */
+	public <T extends Entity> Future<T> findOneAndUpdate(Query q) {
+		if(q.updates.isEmpty())
+			return Future.failedFuture(new IllegalArgumentException("findOneAndUpdate needs at least one update"));
+
+		Bson filter = BsonService.generateCompositeFilter(q.filters, sync::parseValue);
+		Bson update = BsonService.generateUpdates(q.updates, sync::parseValue);
+
+		FindOneAndUpdateOptions options = new FindOneAndUpdateOptions()
+				.upsert(q.isUpsert())
+				.returnDocument(ReturnDocument.AFTER)
+				.sort(BsonService.generateSorts(q.sorts));
+
+		Set<String> projected = q.projections.isEmpty() ? null : q.projections;
+		if(projected != null)
+			options.projection(BsonService.generateProjections(projected));
+
+		return ReactiveFutures.first(context(), db.getCollection(q.getType()).findOneAndUpdate(filter, update, options))
+				.map(doc -> {
+					if(doc == null)
+						return null;
+
+					sync.onKeyModified(new Key(q.getType(), doc.getObjectId("_id")));
+
+					return sync.<T>buildFetchedEntity(q.getType(), doc, projected);
+				});
+	}
+
+	public Future<Void> runDeleteQuery(Query q) {
+		Bson filter = BsonService.generateCompositeFilter(q.filters, sync::parseValue);
+
+		return ReactiveFutures.first(context(), db.getCollection(q.getType()).deleteMany(filter))
+				.map(deleted -> {
+					sync.onTypeModified(q.getType());
+					return null;
+				});
+	}
+
+	/**
+	 * @return the context callbacks for the current call should complete on
+	 */
+	private Context context() {
+		return vertx.getOrCreateContext();
+	}
+}
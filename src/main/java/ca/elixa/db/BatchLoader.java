@@ -0,0 +1,136 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.bson.Document;
+
+/**
+ * Coalesces independent single key lookups into batches, DataLoader style.
+ *
+ * Every load made before the batch is dispatched is queued; the scheduler decides when that happens (the end of the
+ * current event loop tick, or a short window). The batch is then deduplicated and handed to the batch function as a
+ * single list, which is expected to fetch it with one $in per collection.
+ *
+ * Each caller gets its own copy of the document, so callers never share mutable state.
+ *
+ * See {@link DBService#enableBatchLoading(java.time.Duration)} and {@link AsyncDBService#enableBatchLoading()}
+ *
+ * @author Evan
+ *
+ */
+public class BatchLoader {
+
+	/**
+	 * Fetches a batch of keys.
+	 */
+	public interface BatchFunction {
+		/**
+		 * @param keys - distinct keys, possibly of several types
+		 * @return key -> document for every key that exists
+		 */
+		CompletionStage<Map<Key, Document>> load(List<Key> keys);
+	}
+
+	/**
+	 * Decides when a batch goes out.
+	 */
+	public interface Scheduler {
+		/**
+		 * Called once per batch, by the first load that queues into it.
+		 * @param dispatch - sends the batch. This must be called exactly once.
+		 */
+		void schedule(Runnable dispatch);
+	}
+
+	private final BatchFunction batchFunction;
+	private final Scheduler scheduler;
+
+	//key -> everyone waiting on it
+	private Map<Key, List<CompletableFuture<Document>>> queue = new LinkedHashMap<>();
+	private boolean scheduled = false;
+
+	public BatchLoader(BatchFunction batchFunction, Scheduler scheduler) {
+		this.batchFunction = batchFunction;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Queue a key into the next batch.
+	 * @param key
+	 * @return the document, or null if it doesn't exist
+	 */
+	public CompletableFuture<Document> load(Key key) {
+		CompletableFuture<Document> future = new CompletableFuture<>();
+		boolean schedule = false;
+
+		synchronized(this) {
+			queue.computeIfAbsent(key, k -> new ArrayList<>(1)).add(future);
+
+			if(false == scheduled) {
+				scheduled = true;
+				schedule = true;
+			}
+		}
+
+		//outside of the lock, since a scheduler is allowed to block until the window closes
+		if(schedule)
+			scheduler.schedule(this::dispatch);
+
+		return future;
+	}
+
+	/**
+	 * Send everything queued so far as a single batch.
+	 */
+	private void dispatch() {
+		Map<Key, List<CompletableFuture<Document>>> batch;
+
+		synchronized(this) {
+			batch = queue;
+			queue = new LinkedHashMap<>();
+			scheduled = false;
+		}
+
+		if(batch.isEmpty())
+			return;
+
+		CompletionStage<Map<Key, Document>> loaded;
+
+		try {
+			loaded = batchFunction.load(new ArrayList<>(batch.keySet()));
+		}
+		catch(RuntimeException e) {
+			fail(batch, e);
+			return;
+		}
+
+		loaded.whenComplete((docs, error) -> {
+			if(error != null) {
+				fail(batch, error);
+				return;
+			}
+
+			for(Map.Entry<Key, List<CompletableFuture<Document>>> entry : batch.entrySet()) {
+				Document doc = docs.get(entry.getKey());
+				List<CompletableFuture<Document>> waiting = entry.getValue();
+
+				for(int i = 0; i < waiting.size(); i++) {
+					//the first caller can have the original, everyone else gets a copy
+					Document result = doc == null || i == 0 ? doc : BsonService.copyDocument(doc);
+					waiting.get(i).complete(result);
+				}
+			}
+		});
+	}
+
+	private void fail(Map<Key, List<CompletableFuture<Document>>> batch, Throwable error) {
+		for(List<CompletableFuture<Document>> waiting : batch.values())
+			for(CompletableFuture<Document> future : waiting)
+				future.completeExceptionally(error);
+	}
+}
@@ -1,14 +1,26 @@
 package ca.elixa.db;
 
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BsonField;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.Updates;
 import io.vertx.core.json.JsonObject;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.UnaryOperator;
 
 /**
  * Static methods for composing Bson
@@ -24,29 +36,248 @@ public class BsonService {
         return generateFilter("_id", FilterOperator.EQUAL, new ObjectId(id));
     }
 
+    /**
+     * The same as getFilterForId(key.getId()), without going through the hex string.
+     * @param key
+     * @return a filter matching the key's document
+     */
+    protected static Bson getFilterForKey(Key key) {
+        return Filters.eq("_id", getIdValue(key));
+    }
+
+    /**
+     * @param key
+     * @return the key's id the way it is stored in _id
+     */
+    protected static Object getIdValue(Key key) {
+        return key.hasObjectId() ? key.toObjectId() : key.getId();
+    }
+
+    /**
+     * @param version - the version an entity was loaded at
+     * @return a filter that only matches the document if it is still at that version
+     */
+    protected static Bson getFilterForVersion(long version) {
+        //documents saved before optimistic locking was turned on don't have a version yet
+        if(version == 0)
+            return Filters.exists(Entity.VERSION_FIELD, false);
+
+        return Filters.eq(Entity.VERSION_FIELD, version);
+    }
+
     /**
      * Generate a bson projection
-     * @param projections - a set of strings; the property names we are projecting
-     * @return the composed bson projections
+     * @param projections - a set of strings; the property names we are projecting. This can be null.
+     * @return the composed bson projections, or null if there are none
      */
     protected static Bson generateProjections(Set<String> projections) {
-        return Projections.include(projections.toArray(new String[projections.size()]));
+        if(projections == null || projections.isEmpty())
+            return null;
+
+        //a projected entity still needs its version to be saved with optimistic locking
+        List<String> fields = new ArrayList<>(projections);
+        fields.add(Entity.VERSION_FIELD);
+
+        return Projections.include(fields);
+    }
+
+    /**
+     * Generate a bson sort
+     * @param sorts - property name -> ascending, in priority order
+     * @return the composed bson sort, or null if there are no sorts
+     */
+    protected static Bson generateSorts(LinkedHashMap<String, Boolean> sorts) {
+        if(sorts.isEmpty())
+            return null;
+
+        List<Bson> bsonSorts = new ArrayList<>();
+
+        for(Map.Entry<String, Boolean> entry : sorts.entrySet())
+            bsonSorts.add(entry.getValue() ? Sorts.ascending(entry.getKey()) : Sorts.descending(entry.getKey()));
+
+        return Sorts.orderBy(bsonSorts);
+    }
+
+    /**
+     * Generate a filter matching everything that sorts after a given position, for keyset pagination.
+     * For sorts (a, b) positioned at (x, y) this is: a > x OR (a == x AND b > y)
+     * @param sorts - property name -> ascending, in priority order. This must end in a unique property.
+     * @param position - the values of each sorted property on the last result we saw
+     * @return the composed bson filter
+     */
+    protected static Bson generateKeysetFilter(LinkedHashMap<String, Boolean> sorts, List<Object> position) {
+        List<Bson> branches = new ArrayList<>();
+        List<Bson> equalSoFar = new ArrayList<>();
+
+        int i = 0;
+        for(Map.Entry<String, Boolean> entry : sorts.entrySet()) {
+            Object value = position.get(i++);
+
+            List<Bson> branch = new ArrayList<>(equalSoFar);
+            branch.add(entry.getValue() ? Filters.gt(entry.getKey(), value) : Filters.lt(entry.getKey(), value));
+            branches.add(branch.size() == 1 ? branch.get(0) : Filters.and(branch));
+
+            equalSoFar.add(Filters.eq(entry.getKey(), value));
+        }
+
+        return branches.size() == 1 ? branches.get(0) : Filters.or(branches);
+    }
+
+    /**
+     * Encode a keyset position as an opaque, url safe string.
+     * @param position - the values of each sorted property
+     * @return the token
+     */
+    protected static String encodeContinuationToken(List<Object> position) {
+        String json = new Document("p", position).toJson(JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build());
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token - a token from encodeContinuationToken
+     * @param size - how many values the position should hold
+     * @return the decoded position
+     */
+    protected static List<Object> decodeContinuationToken(String token, int size) {
+        List<Object> position;
+
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            position = Document.parse(json).getList("p", Object.class);
+        }
+        catch(RuntimeException e) {
+            throw new IllegalArgumentException("Malformed continuation token " + token, e);
+        }
+
+        if(position == null || position.size() != size)
+            throw new IllegalArgumentException("Continuation token does not match the query's sorts " + token);
+
+        return position;
+    }
+
+    /**
+     * Read a possibly dotted path (a.b.c) out of a document.
+     * @param doc
+     * @param path
+     * @return the value, or null if any part of the path is missing
+     */
+    protected static Object getPath(Document doc, String path) {
+        if(path.indexOf('.') < 0)
+            return doc.get(path);
+
+        Object current = doc;
+
+        for(String part : path.split("\\.")) {
+            if(false == current instanceof Document)
+                return null;
+
+            current = ((Document) current).get(part);
+        }
+
+        return current;
+    }
+
+    /**
+     * Generate the aggregation pipeline for a group by: match, group, then sort and limit the groups.
+     * @param a - the aggregation
+     * @return the pipeline stages
+     */
+    protected static List<Bson> generatePipeline(Aggregation a) {
+        return generatePipeline(a, BsonService::parseValue);
+    }
+
+    /**
+     * Generate the aggregation pipeline for a group by
+     * @param a - the aggregation
+     * @param parser - turns each filter value into something bson can encode
+     * @return the pipeline stages
+     */
+    protected static List<Bson> generatePipeline(Aggregation a, UnaryOperator<Object> parser) {
+        List<Bson> pipeline = new ArrayList<>();
+
+        if(false == a.filters.isEmpty())
+            pipeline.add(Aggregates.match(generateCompositeFilter(a.filters, parser)));
+
+        //grouped values are stored by position, since field paths can't be used as names
+        Document id = null;
+        if(false == a.groupBy.isEmpty()) {
+            id = new Document();
+
+            for(String field : a.groupBy)
+                id.put(a.groupKey(field), "$" + field);
+        }
+
+        List<BsonField> accumulators = new ArrayList<>();
+
+        for(Map.Entry<String, Pair<Aggregation.Operator, String>> entry : a.accumulators.entrySet()) {
+            String alias = entry.getKey();
+            String field = "$" + entry.getValue().getValue();
+
+            switch(entry.getValue().getKey()) {
+                case SUM:
+                    accumulators.add(Accumulators.sum(alias, field));
+                    break;
+                case AVG:
+                    accumulators.add(Accumulators.avg(alias, field));
+                    break;
+                case MIN:
+                    accumulators.add(Accumulators.min(alias, field));
+                    break;
+                case MAX:
+                    accumulators.add(Accumulators.max(alias, field));
+                    break;
+                case COUNT:
+                    accumulators.add(Accumulators.sum(alias, 1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid aggregation operator " + entry.getValue().getKey());
+            }
+        }
+
+        pipeline.add(Aggregates.group(id, accumulators));
+
+        if(false == a.sorts.isEmpty()) {
+            LinkedHashMap<String, Boolean> sorts = new LinkedHashMap<>();
+
+            for(Map.Entry<String, Boolean> entry : a.sorts.entrySet()) {
+                String name = entry.getKey();
+                sorts.put(a.groupBy.contains(name) ? "_id." + a.groupKey(name) : name, entry.getValue());
+            }
+
+            pipeline.add(Aggregates.sort(generateSorts(sorts)));
+        }
+
+        if(a.getLimit() > 0)
+            pipeline.add(Aggregates.limit(a.getLimit()));
+
+        return pipeline;
+    }
+
+    /**
+     * Generate a bson update
+     * @param updates - property -> how it is updated, and the value
+     * @return the composed bson updates
+     */
+    protected static Bson generateUpdates(Map<String, Pair<UpdateOperator, Object>> updates) {
+        return generateUpdates(updates, BsonService::parseValue);
     }
 
     /**
      * Generate a bson update
-     * @param updates - a string-object map of the updates to apply
+     * @param updates - property -> how it is updated, and the value
+     * @param parser - turns each raw value into something bson can encode
      * @return the composed bson updates
      */
-    protected static Bson generateUpdates(Map<String, Object> updates) {
+    protected static Bson generateUpdates(Map<String, Pair<UpdateOperator, Object>> updates, UnaryOperator<Object> parser) {
         List<Bson> bsonUpdates = new ArrayList<>();
 
-        for(Map.Entry<String, Object> entry : updates.entrySet()) {
+        for(Map.Entry<String, Pair<UpdateOperator, Object>> entry : updates.entrySet()) {
 
             //ensure that we parse keys into documents
-            Object value = parseValue(entry.getValue());
+            Object value = parser.apply(entry.getValue().getValue());
 
-            bsonUpdates.add(Updates.set(entry.getKey(), value));
+            bsonUpdates.add(generateUpdate(entry.getKey(), entry.getValue().getKey(), value));
         }
 
 
@@ -54,30 +285,134 @@ public class BsonService {
     }
 
     /**
-     * Generate a composite bson filter
-     * TODO helper methods for queries
-     * @param filters - a string-<filteroperator-object> map of the filters. see Query and QueryService for impl
-     * @return the composed Bson
+     * Generate a SINGLE bson update
+     * @param fieldName - the field we're updating
+     * @param op - how it is updated
+     * @param value - the already parsed value
+     * @return the bson update
      */
-    protected static Bson generateCompositeFilter(Map<String, Pair<FilterOperator, Object>> filters) {
+    @SuppressWarnings("unchecked")
+    protected static Bson generateUpdate(String fieldName, UpdateOperator op, Object value) {
+        switch(op) {
+            case SET:
+                return Updates.set(fieldName, value);
+            case UNSET:
+                return Updates.unset(fieldName);
+            case INC:
+                return Updates.inc(fieldName, (Number) value);
+            case MIN:
+                return Updates.min(fieldName, value);
+            case MAX:
+                return Updates.max(fieldName, value);
+            case PUSH:
+                return value instanceof List ? Updates.pushEach(fieldName, (List<Object>) value) : Updates.push(fieldName, value);
+            case ADD_TO_SET:
+                return value instanceof List ? Updates.addEachToSet(fieldName, (List<Object>) value) : Updates.addToSet(fieldName, value);
+            case PULL:
+                return value instanceof List ? Updates.pullAll(fieldName, (List<Object>) value) : Updates.pull(fieldName, value);
+            default:
+                throw new IllegalArgumentException("Invalid update operator " + op.toString());
+        }
+    }
 
-        if(filters.size() == 0)
-            filters.put("__", new Pair<>(FilterOperator.EQUAL, null));
+    /**
+     * Generate the update for a partial save: the dirty fields are written as they are, and the entity's pending
+     * atomic updates are added on top.
+     * @param doc - the current state of the document
+     * @param fields - the dirty fields
+     * @param pending - field -> atomic update. These never overlap with the dirty fields
+     * @return the composed bson updates
+     */
+    protected static Bson generateEntityUpdates(Document doc, Set<String> fields, Map<String, Pair<UpdateOperator, Object>> pending) {
+        if(pending.isEmpty())
+            return generateFieldUpdates(doc, fields);
 
-        List<Bson> builtFilters = new ArrayList<>();
+        List<Bson> bsonUpdates = new ArrayList<>();
 
-        for(Map.Entry<String, Pair<FilterOperator, Object>> entry : filters.entrySet()) {
-            String type = entry.getKey();
-            Pair<FilterOperator, Object> rawFilter = entry.getValue();
+        if(false == fields.isEmpty())
+            bsonUpdates.add(generateFieldUpdates(doc, fields));
 
-            //Ensure that we parse keys into documents
-            Object value = parseValue(rawFilter.getValue());
+        bsonUpdates.add(generateUpdates(pending));
 
-            builtFilters.add(generateFilter(type, rawFilter.getKey(), value));
+        return Updates.combine(bsonUpdates);
+    }
+
+    /**
+     * Generate a bson update that brings a stored document in line with the given fields of a document.
+     * Fields that are present are $set, fields that are missing are $unset.
+     * @param doc - the current state of the document
+     * @param fields - the fields to write. Dotted paths (a.b) are allowed
+     * @return the composed bson updates
+     */
+    protected static Bson generateFieldUpdates(Document doc, Set<String> fields) {
+        List<Bson> bsonUpdates = new ArrayList<>();
+
+        for(String field : fields) {
+            //projected sub fields (a.b) are written by path, so the rest of the embedded document is left alone
+            if(field.indexOf('.') >= 0) {
+                Object value = getPath(doc, field);
+
+                bsonUpdates.add(value == null ? Updates.unset(field) : Updates.set(field, value));
+            }
+            else if(doc.containsKey(field))
+                bsonUpdates.add(Updates.set(field, doc.get(field)));
+            else
+                bsonUpdates.add(Updates.unset(field));
         }
 
+        return Updates.combine(bsonUpdates);
+    }
+
+    /**
+     * Generate a composite bson filter
+     * @param filters - the filters, ANDed together. see Query and Filter for impl
+     * @return the composed Bson. An empty filter list matches everything
+     */
+    protected static Bson generateCompositeFilter(List<Filter> filters) {
+        return generateCompositeFilter(filters, BsonService::parseValue);
+    }
+
+    /**
+     * Generate a composite bson filter
+     * @param filters - the filters, ANDed together
+     * @param parser - turns each raw value into something bson can encode
+     * @return the composed Bson. An empty filter list matches everything
+     */
+    protected static Bson generateCompositeFilter(List<Filter> filters, UnaryOperator<Object> parser) {
+        if(filters.isEmpty())
+            return new Document();
+
+        if(filters.size() == 1)
+            return generateFilter(filters.get(0), parser);
+
+        List<Bson> builtFilters = new ArrayList<>();
+
+        for(Filter filter : filters)
+            builtFilters.add(generateFilter(filter, parser));
+
         //Compose the final filter.
-        return Filters.and(builtFilters.toArray(new Bson[builtFilters.size()]));
+        return Filters.and(builtFilters);
+    }
+
+    /**
+     * Generate a bson filter out of a predicate, or a group of them
+     * @param filter
+     * @param parser - turns each raw value into something bson can encode
+     * @return the bson filter
+     */
+    protected static Bson generateFilter(Filter filter, UnaryOperator<Object> parser) {
+        if(false == filter.isGroup())
+            return generateFilter(filter.getField(), filter.getOperator(), parser.apply(filter.getValue()));
+
+        List<Bson> children = new ArrayList<>();
+
+        for(Filter child : filter.getChildren())
+            children.add(generateFilter(child, parser));
+
+        if(children.size() == 1)
+            return children.get(0);
+
+        return filter.getGroup() == Filter.Group.OR ? Filters.or(children) : Filters.and(children);
     }
 
     /**
@@ -101,31 +436,58 @@ public class BsonService {
                 return Filters.lt(fieldName, value);
             case LESS_EQUAL:
                 return Filters.lte(fieldName, value);
+            case IN:
+                return Filters.in(fieldName, toIterable(value));
+            case NOT_IN:
+                return Filters.nin(fieldName, toIterable(value));
+            case EXISTS:
+                return Filters.exists(fieldName, value == null || Boolean.TRUE.equals(value));
             default:
                 throw new IllegalArgumentException("Invalid filter operator " + op.toString());
         }
     }
 
+    private static Iterable<?> toIterable(Object value) {
+        if(value instanceof Iterable<?> iterable)
+            return iterable;
+        if(value instanceof Object[] array)
+            return Arrays.asList(array);
+
+        return Collections.singletonList(value);
+    }
+
+    /**
+     * Convert raw objects into documents, with keys as {type, id} documents. See parseValue(Object, boolean)
+     * @param obj the raw object
+     * @return the formatted object
+     */
+    protected static Object parseValue(Object obj) {
+        return parseValue(obj, false);
+    }
+
     /**
      * Convert raw objects into documents
      * Notably, {@link Key} -> {@link Document}
      * This is its own method because in the case of lists, it calls itself recursively.
      * @param obj the raw object
+     * @param compactKeys whether keys are stored compactly, see DBService.setCompactKeyStorage
      * @return the formatted object
      */
-    protected static Object parseValue(Object obj) {
-        //if this object is a key, we convert it to a document.
+    protected static Object parseValue(Object obj, boolean compactKeys) {
+        if(obj instanceof QueryParam param)
+            throw new IllegalArgumentException("Unbound query parameter " + param + ", run the query through DBService.prepare");
+        //if this object is a key, we convert it to a document (or its compact form)
         if(obj instanceof Key key)
-            return key.toDocument();
+            return key.toStoredValue(compactKeys);
         //if this object is an entity, we convert it to a document.
         if(obj instanceof Entity ent)
             return ent.raw;
-        //if this object is a list, we iterate over it, parsing each time
-        if(obj instanceof List){
+        //if this object is a list (or any collection), we iterate over it, parsing each time
+        if(obj instanceof Collection){
             List<Object> list = new ArrayList<>();
 
-            for(Object o : (List<?>)obj)
-                list.add(parseValue(o));
+            for(Object o : (Collection<?>)obj)
+                list.add(parseValue(o, compactKeys));
 
             return list;
         }
@@ -141,7 +503,7 @@ public class BsonService {
 
             for(var entry : casted.entrySet()) {
 
-                Object parsed = parseValue(entry.getValue());
+                Object parsed = parseValue(entry.getValue(), compactKeys);
 
                 doc.put(entry.getKey(), parsed);
             }
@@ -153,6 +515,95 @@ public class BsonService {
         return obj;
     }
 
+    /**
+     * Deep copy a document, so that the copy shares no mutable state with the original.
+     * Embedded documents and lists are copied, everything else is treated as immutable.
+     * @param doc
+     * @return the copy
+     */
+    protected static Document copyDocument(Document doc) {
+        //the bytes are never written to, so both copies can read the same ones
+        if(doc instanceof LazyDocument lazy && lazy.getBytes() != null)
+            return lazy.copyUnread();
+
+        Document result = new Document();
+
+        for(Map.Entry<String, Object> entry : doc.entrySet())
+            result.put(entry.getKey(), copyValue(entry.getValue()));
+
+        return result;
+    }
+
+    protected static Object copyValue(Object obj) {
+        if(obj instanceof Document doc)
+            return copyDocument(doc);
+        if(obj instanceof List<?> list) {
+            List<Object> result = new ArrayList<>(list.size());
+
+            for(Object o : list)
+                result.add(copyValue(o));
+
+            return result;
+        }
+        if(obj instanceof Date date)
+            return new Date(date.getTime());
+
+        return obj;
+    }
+
+    /**
+     * A rough estimate of how many bytes a value takes up once encoded. This is used to weigh cache entries, so it
+     * favours being cheap over being exact.
+     * @param obj the raw object
+     * @return the estimated size in bytes
+     */
+    protected static long estimateSize(Object obj) {
+        if(obj == null)
+            return 1;
+        if(obj instanceof String str)
+            return str.length() + 5;
+        if(obj instanceof LazyDocument lazy && lazy.getBytes() != null)
+            return lazy.getBytes().getByteBuffer().remaining();
+        if(obj instanceof Document doc) {
+            long size = 5;
+
+            for(Map.Entry<String, Object> entry : doc.entrySet())
+                size += entry.getKey().length() + 2 + estimateSize(entry.getValue());
+
+            return size;
+        }
+        if(obj instanceof List<?> list) {
+            long size = 5;
+
+            for(Object o : list)
+                size += 4 + estimateSize(o);
+
+            return size;
+        }
+        if(obj instanceof ObjectId)
+            return 12;
+        if(obj instanceof Binary binary)
+            return binary.length() + 5;
+        if(obj instanceof Integer || obj instanceof Boolean)
+            return 4;
+
+        //longs, doubles, dates, and anything else we don't know the shape of
+        return 8;
+    }
+
+    /**
+     * Encode a single value to bson.
+     * @param value the value, already parsed with parseValue
+     * @param registry the codecs to encode with
+     * @return the bson value
+     */
+    protected static BsonValue toBsonValue(Object value, CodecRegistry registry) {
+        if(value == null)
+            return BsonNull.VALUE;
+
+        return new Document("v", value).toBsonDocument(Document.class, registry).get("v");
+    }
+
     public static Document jsonToDoc(JsonObject json){
         Document doc = new Document();
 
@@ -0,0 +1,111 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a bulk put. Every entity handed to {@link DBService#put(Iterable)} ends up in exactly one of
+ * succeeded, failed or skipped.
+ *
+ * @author Evan
+ *
+ */
+public class BulkPutResult {
+	/**
+	 * The failure code of an entity that was saved by someone else since it was loaded. See {@link OptimisticLockException}
+	 */
+	public static final int VERSION_CONFLICT = -2;
+
+	private final List<Entity> succeeded = new ArrayList<>();
+	private final List<Failure> failures = new ArrayList<>();
+	private final List<Entity> skipped = new ArrayList<>();
+
+	protected void addSucceeded(Entity ent) {
+		succeeded.add(ent);
+	}
+
+	protected void addFailure(Entity ent, int code, String message) {
+		failures.add(new Failure(ent, code, message));
+	}
+
+	protected void addSkipped(Entity ent) {
+		skipped.add(ent);
+	}
+
+	/**
+	 * Merge another result into this one.
+	 * @param other
+	 */
+	protected void addAll(BulkPutResult other) {
+		succeeded.addAll(other.succeeded);
+		failures.addAll(other.failures);
+		skipped.addAll(other.skipped);
+	}
+
+	public List<Entity> getSucceeded() {
+		return Collections.unmodifiableList(succeeded);
+	}
+
+	public List<Failure> getFailures() {
+		return Collections.unmodifiableList(failures);
+	}
+
+	/**
+	 * @return entities that were not written at all, ie. projected entities, or entities with no changes to save.
+	 */
+	public List<Entity> getSkipped() {
+		return Collections.unmodifiableList(skipped);
+	}
+
+	public boolean hasFailures() {
+		return false == failures.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "BulkPutResult(succeeded=" + succeeded.size() + ", failed=" + failures.size() + ", skipped=" + skipped.size() + ")";
+	}
+
+	/**
+	 * A single entity that could not be written, along with the reason the server gave.
+	 */
+	public static class Failure {
+		private final Entity entity;
+		private final int code;
+		private final String message;
+
+		protected Failure(Entity entity, int code, String message) {
+			this.entity = entity;
+			this.code = code;
+			this.message = message;
+		}
+
+		public Entity getEntity() {
+			return entity;
+		}
+
+		/**
+		 * @return the mongo error code, -1 if the write was never attempted, or VERSION_CONFLICT.
+		 */
+		public int getCode() {
+			return code;
+		}
+
+		/**
+		 * @return true if the entity was saved by someone else since it was loaded. Nothing was written.
+		 */
+		public boolean isVersionConflict() {
+			return code == VERSION_CONFLICT;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return entity.getKeyString() + ": " + message + " (" + code + ")";
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package ca.elixa.db;
+
+import java.time.Duration;
+
+/**
+ * How a single entity type is cached by an {@link EntityCache}. Entries are evicted least recently used first,
+ * once either bound is exceeded.
+ *
+ * @author Evan
+ *
+ */
+public class CacheConfig {
+	private long maxEntries = 10_000;
+	private long maxWeight = Long.MAX_VALUE;
+	private Duration ttl = null;
+
+	/**
+	 * @param maxEntries - the max number of documents held for this type
+	 * @return itself
+	 */
+	public CacheConfig setMaxEntries(long maxEntries) {
+		this.maxEntries = maxEntries;
+		return this;
+	}
+
+	/**
+	 * @param maxWeight - the max estimated size, in bytes, of all documents held for this type
+	 * @return itself
+	 */
+	public CacheConfig setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+		return this;
+	}
+
+	/**
+	 * @param ttl - how long a document is served after it was loaded or written. Null means forever.
+	 * @return itself
+	 */
+	public CacheConfig setTtl(Duration ttl) {
+		this.ttl = ttl;
+		return this;
+	}
+
+	public long getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public Duration getTtl() {
+		return ttl;
+	}
+}
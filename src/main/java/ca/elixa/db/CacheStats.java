@@ -0,0 +1,59 @@
+package ca.elixa.db;
+
+/**
+ * A point in time snapshot of the counters for one cached type. See {@link EntityCache#getStats(String)}
+ *
+ * @author Evan
+ *
+ */
+public class CacheStats {
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final long size;
+	private final long weight;
+
+	protected CacheStats(long hits, long misses, long evictions, long size, long weight) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.size = size;
+		this.weight = weight;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of documents currently held
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the estimated size, in bytes, of the documents currently held
+	 */
+	public long getWeight() {
+		return weight;
+	}
+
+	public double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0d : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats(hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + ", weight=" + weight + ")";
+	}
+}
@@ -1,20 +1,58 @@
 package ca.elixa.db;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import ca.elixa.iris.Iris;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.*;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
 
 
 /**
@@ -33,13 +71,11 @@ import com.mongodb.client.model.Filters;
 public class DBService{
 	protected final EntityFactory entityService;
 	private final MongoClient client;
-	protected final MongoDatabase db;
-	protected final ClientSession session;
+	protected volatile MongoDatabase db;
 
 	public DBService(MongoClient client, EntityFactory cs) {
 		entityService = cs;
 		this.client = client;
-		session = client.startSession();
 		db = client.getDatabase(getDBName());
 
 	}
@@ -50,40 +86,266 @@ public class DBService{
 	}
 
 	/**
-	 * Perform an action inside of a mongodb transaction.
-	 * This isn't ThreadSafe
+	 * The write concern for everything outside of a transaction.
+	 * @param concern
+	 */
+	public void setWriteConcern(WriteConcern concern) {
+		db = db.withWriteConcern(concern);
+	}
+
+	/**
+	 * The read concern for everything outside of a transaction.
+	 * @param concern
+	 */
+	public void setReadConcern(ReadConcern concern) {
+		db = db.withReadConcern(concern);
+	}
+
+	private volatile TransactionOptions transactionOptions = TransactionOptions.builder()
+			.readConcern(ReadConcern.SNAPSHOT)
+			.writeConcern(WriteConcern.MAJORITY)
+			.readPreference(ReadPreference.primary())
+			.build();
+	private volatile int maxTransactionAttempts = 5;
+
+	//the transaction running on each thread
+	private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+
+	/**
+	 * The read concern, write concern and read preference of every transaction. Defaults to snapshot reads and
+	 * majority writes, on the primary.
+	 * @param options
+	 */
+	public void setTransactionOptions(TransactionOptions options) {
+		transactionOptions = options;
+	}
+
+	public TransactionOptions getTransactionOptions() {
+		return transactionOptions;
+	}
+
+	/**
+	 * How many times a transaction is run before a transient error (ie. a write conflict) is given up on.
+	 * @param attempts
+	 */
+	public void setMaxTransactionAttempts(int attempts) {
+		maxTransactionAttempts = Math.max(1, attempts);
+	}
+
+	public int getMaxTransactionAttempts() {
+		return maxTransactionAttempts;
+	}
+
+	/**
+	 * Perform an action inside of a mongodb transaction. See runInTransaction.
 	 *
-	 * @param action - what is being run inside the script context
-	 * @return
+	 * @param action - what is being run inside the transaction
+	 * @return true if the transaction committed, false if it failed and was rolled back.
 	 */
 	public boolean doTransaction(Runnable action) {
+		try {
+			runInTransaction(() -> {
+				action.run();
+				return null;
+			});
+
+			return true;
+		}
+		catch(RuntimeException e) {
+			Iris.error("Transaction failed: " + e);
+			return false;
+		}
+	}
 
-		action.run();
-
-		return true;
-
-		//try{
-		//	return true;
-		//}
-		//catch(Exception e){
-		//	e.printStackTrace();
-		//	return false;
-		//}
-
-		/*
-        //TODO consider transactionOptions
-        return session.withTransaction(() -> {
-            try {
-                action.run();
-                return true;
-            }
-            //if any error occurs, we simply report back. Might be worth throwing E instead? TODO
-            catch(Exception e) {
-                return false;
-            }
-        });
+	/**
+	 * Run an action inside of a mongodb transaction, on a session of its own. Every read and write this DBService
+	 * makes on this thread until the action returns goes through that session. Calls made on other threads are not
+	 * part of the transaction.
+	 *
+	 * If the action or the commit fails with a transient error, the whole transaction is rolled back and run again,
+	 * up to getMaxTransactionAttempts times, so the action must be safe to repeat. Entities saved by a rolled back
+	 * attempt are marked unsaved again.
+	 *
+	 * Nested calls join the outer transaction.
+	 *
+	 * This needs a replica set, a standalone server doesn't support transactions.
+	 * @param action - what is being run inside the transaction
+	 * @return what the action returned
+	 */
+	public <R> R runInTransaction(Supplier<R> action) {
+		if(transaction.get() != null)
+			return action.get();
 
+		try(ClientSession session = client.startSession()) {
+			Transaction tx = new Transaction(session);
+			transaction.set(tx);
+
+			try {
+				for(int attempt = 1; ; attempt++) {
+					session.startTransaction(transactionOptions);
+
+					try {
+						R result = action.get();
+						commit(session);
+						tx.committed();
+						return result;
+					}
+					catch(RuntimeException e) {
+						if(session.hasActiveTransaction())
+							session.abortTransaction();
+
+						tx.rolledBack(getIdentityMap());
+
+						if(attempt >= maxTransactionAttempts || false == hasErrorLabel(e, MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL))
+							throw e;
+
+						Iris.debug("RETRYING TRANSACTION, attempt " + attempt + " failed with " + e);
+
+						//back off a little, so conflicting transactions don't keep colliding
+						LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(1, 10_000_000L * attempt));
+					}
+				}
+			}
+			finally {
+				transaction.remove();
+				tx.invalidateTouched(entityCache);
+			}
+		}
+	}
+
+	/**
+	 * Commit, retrying while the outcome of the commit is unknown. Committing again is safe.
+	 * @param session
+	 */
+	private void commit(ClientSession session) {
+		for(int attempt = 1; ; attempt++) {
+			try {
+				session.commitTransaction();
+				return;
+			}
+			catch(MongoException e) {
+				if(attempt >= maxTransactionAttempts || false == e.hasErrorLabel(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL))
+					throw e;
+			}
+		}
+	}
+
+	private static boolean hasErrorLabel(Throwable e, String label) {
+		return e instanceof MongoException mongoError && mongoError.hasErrorLabel(label);
+	}
+
+	/**
+	 * @return true if this thread is inside of runInTransaction
+	 */
+	public boolean inTransaction() {
+		return transaction.get() != null;
+	}
+
+	/**
+	 * @return the session every call on this thread has to use, or null outside of a transaction.
+	 */
+	protected ClientSession currentSession() {
+		Transaction tx = transaction.get();
+
+		return tx == null ? null : tx.session;
+	}
+
+	/**
+	 * @return the entity cache, unless this thread is in a transaction. A transaction has to read its own snapshot,
+	 * and what it reads may never commit.
+	 */
+	private EntityCache readCache() {
+		return transaction.get() == null ? entityCache : null;
+	}
+
+	/**
+	 * A find, through the current transaction if there is one.
+	 */
+	private FindIterable<Document> find(MongoCollection<Document> col, Bson filter) {
+		ClientSession s = currentSession();
+
+		return s == null ? col.find(filter) : col.find(s, filter);
+	}
+
+	/**
+	 * The state of a transaction running on one thread.
+	 */
+	private static class Transaction {
+		private final ClientSession session;
+
+		//what the current attempt saved, and what to restore if it rolls back
+		private final Map<Entity, Set<String>> saved = new IdentityHashMap<>();
+		private final Set<Entity> savedNew = Collections.newSetFromMap(new IdentityHashMap<>());
+		private final Map<Entity, Long> savedVersions = new IdentityHashMap<>();
+
+		//cached state that may be stale once this transaction ends, one way or the other
+		private final Set<Key> touchedKeys = new HashSet<>();
+		private final Set<String> touchedTypes = new HashSet<>();
+
+		private Transaction(ClientSession session) {
+			this.session = session;
+		}
+
+		/**
+		 * Remember an entity's unsaved state, before the first markSaved of this attempt.
 		 */
+		private void beforeSave(Entity ent) {
+			if(saved.containsKey(ent))
+				return;
+
+			saved.put(ent, new HashSet<>(ent.getUnsavedFields()));
+
+			if(ent.isNew())
+				savedNew.add(ent);
+			else
+				savedVersions.put(ent, ent.getVersion());
+		}
+
+		private void committed() {
+			saved.clear();
+			savedNew.clear();
+			savedVersions.clear();
+		}
+
+		/**
+		 * @param map - the identity map in use, or null
+		 */
+		private void rolledBack(IdentityMap map) {
+			for(Entry<Entity, Set<String>> entry : saved.entrySet())
+				entry.getKey().markUnsaved(savedNew.contains(entry.getKey()), entry.getValue());
+
+			//an insert that never happened can't be looked up
+			if(map != null) {
+				for(Entity ent : savedNew)
+					map.remove(ent.getKey());
+			}
+
+			//the version bump never happened either
+			for(Entry<Entity, Long> entry : savedVersions.entrySet()) {
+				Entity ent = entry.getKey();
+
+				if(ent.getVersion() == entry.getValue())
+					continue;
+
+				if(entry.getValue() == 0)
+					ent.raw.remove(Entity.VERSION_FIELD);
+				else
+					ent.setVersion(entry.getValue());
+			}
+
+			committed();
+		}
+
+		private void invalidateTouched(EntityCache cache) {
+			if(cache == null)
+				return;
+
+			for(Key key : touchedKeys)
+				cache.invalidate(key);
+
+			for(String type : touchedTypes)
+				cache.invalidateType(type);
+		}
 	}
 
 	public Long test(){
@@ -95,25 +357,54 @@ public class DBService{
 	}
 
 	public void testIncrement(){
+		Bson filter = BsonService.getFilterForId("621b087015fbea9eed172e7c");
 
-		Boolean test = doTransaction(() -> {
-			Bson filter = BsonService.getFilterForId("621b087015fbea9eed172e7c");
+		//a single pipeline update, so the server does the read-modify-write and no transaction is needed
+		List<Bson> update = Arrays.asList(
+				Updates.set("Visits", new Document("$add", Arrays.asList(new Document("$ifNull", Arrays.asList("$Visits", 0L)), 1L))),
+				Updates.set("NewValue", "$Visits"));
 
-			Document result = fetchRawInternal("test", filter, new Document()).get(0);
+		Document result = db.getCollection("test").findOneAndUpdate(filter, update,
+				new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
 
-			Long value = result.getLong("Visits");
-			value = value+1;
-			result.put("Visits", value);
-			result.put("NewValue", value);
+		if(result == null) System.out.println("a whoopsie has happened");
+		else System.out.println(result.getLong("Visits"));
+	}
 
-			System.out.println(value);
+	/**
+	 * Check transactions against the configured database, which must be a replica set: a commit is visible, a thrown
+	 * action rolls back, and a write error inside a transaction surfaces as itself rather than as a failed commit.
+	 */
+	public void testTransactions(){
+		MongoCollection<Document> col = db.getCollection("test");
+		ObjectId id = new ObjectId();
 
-			MongoCollection<Document> col = db.getCollection("test");
-			col.replaceOne(filter, result);
+		runInTransaction(() -> col.insertOne(currentSession(), new Document("_id", id)));
+		System.out.println("commit visible: " + (col.countDocuments(Filters.eq("_id", id)) == 1));
 
-		});
+		ObjectId rolledBack = new ObjectId();
+		try {
+			runInTransaction(() -> {
+				col.insertOne(currentSession(), new Document("_id", rolledBack));
+				throw new IllegalStateException("rollback");
+			});
+		}
+		catch(IllegalStateException e) {
+			//expected
+		}
+		System.out.println("rollback discarded: " + (col.countDocuments(Filters.eq("_id", rolledBack)) == 0));
+
+		//the same fresh entity twice in one bulk write, so the second insert is a duplicate key
+		Entity duplicate = createEntity("test");
+		try {
+			runInTransaction(() -> put(List.of(duplicate, duplicate)));
+			System.out.println("a whoopsie has happened, the duplicate insert went through");
+		}
+		catch(MongoException e) {
+			System.out.println("write error surfaced: " + (e instanceof MongoBulkWriteException) + " (" + e + ")");
+		}
 
-		if(!test) System.out.println("a whoopsie has happened");
+		col.deleteOne(Filters.eq("_id", id));
 	}
 
 	//use key.create
@@ -124,9 +415,7 @@ public class DBService{
 
 	@Deprecated
 	public Key getKeyFromDoc(Document doc){
-		if(doc == null)
-			return null;
-		return new Key(doc);
+		return Key.fromStoredValue(doc);
 	}
 
 	@Deprecated
@@ -138,22 +427,321 @@ public class DBService{
 		return entityService.buildEntity(this, type, new Document(), true);
 	}
 
+	private KeyAllocator keyAllocator = new ObjectIdKeyAllocator();
+
+	/**
+	 * Change how fresh entities get their keys. Defaults to {@link ObjectIdKeyAllocator}, which does no I/O.
+	 * @param allocator
+	 */
+	public void setKeyAllocator(KeyAllocator allocator) {
+		keyAllocator = allocator;
+	}
+
+	/**
+	 * This is called the first time a fresh entity's key is needed, not when it is created.
+	 * @param type
+	 * @return a new, unused key
+	 */
 	public Key generateKey(String type) {
-		
-		boolean resolved = false;
-		
-		ObjectId random = null;
-		
-		while(!resolved) {
-			random = new ObjectId();
-			
-			Key key = new Key(type, random.toHexString());
+		return keyAllocator.allocate(type);
+	}
+
+	private volatile IdentityMap identityMap = null;
+	private final ThreadLocal<IdentityMap> scopedIdentityMap = new ThreadLocal<>();
+
+	/**
+	 * Turn on an identity map shared by everything using this DBService. Repeated lookups of a key return the same
+	 * entity object without going to the DB, until it is deleted or disableIdentityMap is called.
+	 *
+	 * This holds on to every entity loaded, so it is meant for short lived DBServices. For a shared DBService, see
+	 * withIdentityMap.
+	 */
+	public void enableIdentityMap() {
+		identityMap = new IdentityMap();
+	}
+
+	public void disableIdentityMap() {
+		identityMap = null;
+	}
 
-			if(entityExists(key))
-				resolved = true;
+	/**
+	 * Run an action with its own identity map, ie. for the length of a request. The map only applies to calls made
+	 * on this thread, and is discarded once the action returns. Nested calls share the outer map.
+	 * @param action
+	 */
+	public void withIdentityMap(Runnable action) {
+		if(scopedIdentityMap.get() != null) {
+			action.run();
+			return;
 		}
-		
-		return new Key(type, random.toHexString());
+
+		scopedIdentityMap.set(new IdentityMap());
+
+		try {
+			action.run();
+		}
+		finally {
+			scopedIdentityMap.remove();
+		}
+	}
+
+	private final Set<String> lazyTypes = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Read documents of these types as {@link LazyDocument}s, which keep the bytes they were read as and only decode
+	 * the fields that are accessed. This saves a lot of allocation when entities are large and callers only read a
+	 * few fields of each, ie. scans. Entities that are written to decode in full, so it doesn't help write heavy types.
+	 * @param types
+	 */
+	public void enableLazyDecoding(String...types) {
+		lazyTypes.addAll(Arrays.asList(types));
+	}
+
+	public void disableLazyDecoding(String...types) {
+		lazyTypes.removeAll(Arrays.asList(types));
+	}
+
+	public boolean isLazyDecoding(String type) {
+		return lazyTypes.contains(type);
+	}
+
+	/**
+	 * @param type
+	 * @return the collection for a type, decoding lazily if the type is set to.
+	 */
+	protected MongoCollection<Document> getCollection(String type) {
+		MongoCollection<Document> col = db.getCollection(type);
+
+		if(false == lazyTypes.contains(type))
+			return col;
+
+		CodecRegistry registry = col.getCodecRegistry();
+
+		return col.withCodecRegistry(CodecRegistries.fromRegistries(
+				CodecRegistries.fromCodecs(new LazyDocumentCodec(registry)),
+				registry));
+	}
+
+	private final Set<String> versionedTypes = ConcurrentHashMap.newKeySet();
+	private volatile int maxConflictAttempts = 5;
+
+	/**
+	 * Save entities of these types with optimistic locking. Every save writes a version number along with the
+	 * entity, and only goes through if the stored document is still at the version the entity was loaded at. If
+	 * someone else saved it in between, nothing is written and an {@link OptimisticLockException} is thrown (or, for
+	 * a bulk put, the entity is reported as a version conflict).
+	 *
+	 * This keeps concurrent read-modify-writes from silently overwriting each other, without the cost of a
+	 * transaction. See retryOnConflict. Atomic updates like {@link Entity#increment(String, Number)} bump the version
+	 * as well, so they conflict too. Updates run through a {@link Query} don't touch the version.
+	 * @param types
+	 */
+	public void enableOptimisticLocking(String...types) {
+		versionedTypes.addAll(Arrays.asList(types));
+	}
+
+	public void disableOptimisticLocking(String...types) {
+		versionedTypes.removeAll(Arrays.asList(types));
+	}
+
+	public boolean isOptimisticLocking(String type) {
+		return versionedTypes.contains(type);
+	}
+
+	/**
+	 * How many times retryOnConflict runs an action before a version conflict is given up on.
+	 * @param attempts
+	 */
+	public void setMaxConflictAttempts(int attempts) {
+		maxConflictAttempts = Math.max(1, attempts);
+	}
+
+	public int getMaxConflictAttempts() {
+		return maxConflictAttempts;
+	}
+
+	/**
+	 * Run a read-modify-write, running it again if a save in it hits a version conflict. The action has to load the
+	 * entities it changes itself, so every attempt starts from what is stored; anything loaded outside of it stays
+	 * stale.
+	 *
+	 * <pre>
+	 * db.retryOnConflict(() -&gt; {
+	 *     Player p = db.getEntity(key);
+	 *     p.setValue("gold", p.getLongValue("gold") - price);
+	 *     db.put(p);
+	 *     return p;
+	 * });
+	 * </pre>
+	 * @param action - what is being run. It must be safe to repeat
+	 * @return what the action returned
+	 */
+	public <R> R retryOnConflict(Supplier<R> action) {
+		for(int attempt = 1; ; attempt++) {
+			try {
+				return action.get();
+			}
+			catch(OptimisticLockException e) {
+				if(attempt >= maxConflictAttempts)
+					throw e;
+
+				Iris.debug("RETRYING AFTER VERSION CONFLICT, attempt " + attempt + " failed on " + e.getKey());
+
+				//back off a little, so the writers we're racing with can finish
+				LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(1, 10_000_000L * attempt));
+			}
+		}
+	}
+
+	private EntityCache entityCache = null;
+
+	/**
+	 * Put a shared cache in front of getEntity and getEntities. Only the types configured on the cache are cached.
+	 * @param cache - the cache, or null to stop caching
+	 */
+	public void setEntityCache(EntityCache cache) {
+		entityCache = cache;
+	}
+
+	public EntityCache getEntityCache() {
+		return entityCache;
+	}
+
+	private volatile BatchLoader batchLoader = null;
+
+	/**
+	 * Coalesce getEntity calls made by different threads at about the same time. The first caller waits for the
+	 * window to close, then fetches every key queued in the meantime with one $in per type; everyone else just waits
+	 * on their result. This also covers Entity.getEntityFromKeyValue.
+	 *
+	 * The loader is shared by every thread using this DBService, not scoped to a request: a blocking caller only
+	 * ever has one lookup in flight, so there is nothing to batch within one thread. Each caller still gets its own
+	 * copy of the document. For batching per request, see AsyncDBService.enableBatchLoading.
+	 *
+	 * A caller that is alone pays the window as extra latency, so keep it short (ie. a millisecond). Calls made
+	 * inside of a transaction are never batched.
+	 * @param window - how long a batch stays open
+	 */
+	public void enableBatchLoading(Duration window) {
+		long nanos = window.toNanos();
+
+		batchLoader = new BatchLoader(
+				keys -> CompletableFuture.completedFuture(fetchRawByKeys(keys)),
+				dispatch -> {
+					LockSupport.parkNanos(nanos);
+					dispatch.run();
+				});
+	}
+
+	public void disableBatchLoading() {
+		batchLoader = null;
+	}
+
+	/**
+	 * Wait on a future, rethrowing its failure as is.
+	 * @param future
+	 * @return the result
+	 */
+	private static <V> V join(CompletableFuture<V> future) {
+		try {
+			return future.join();
+		}
+		catch(CompletionException e) {
+			if(e.getCause() instanceof RuntimeException cause)
+				throw cause;
+			throw e;
+		}
+	}
+
+	private volatile Executor fanOutExecutor = null;
+
+	/**
+	 * Run the per-type groups of getEntities, put(Iterable) and delete(Iterable) concurrently, on virtual threads
+	 * where the JDK has them.
+	 */
+	public void enableParallelFanOut() {
+		enableParallelFanOut(defaultFanOutExecutor());
+	}
+
+	/**
+	 * Run the per-type groups of getEntities, put(Iterable) and delete(Iterable) concurrently.
+	 * @param executor - where the groups run. Each group blocks on I/O, so this should not be a small pool.
+	 */
+	public void enableParallelFanOut(Executor executor) {
+		fanOutExecutor = executor;
+	}
+
+	public void disableParallelFanOut() {
+		fanOutExecutor = null;
+	}
+
+	/**
+	 * @return a virtual thread per task executor on JDK 21+, otherwise a cached pool of daemon threads.
+	 */
+	private static Executor defaultFanOutExecutor() {
+		try {
+			//looked up reflectively, so this still builds and runs on older JDKs
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "DBService-fanout");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * A unit of work for a single type group.
+	 */
+	private interface GroupTask<V, R> {
+		/**
+		 * @param type - the group's type
+		 * @param group - the group
+		 * @param session - the session to run with, or null if there is none. ClientSessions are not thread safe, so
+		 *                  groups only run concurrently outside of a transaction.
+		 * @return the group's result
+		 */
+		R run(String type, V group, ClientSession session);
+	}
+
+	/**
+	 * Run a task for every type group, concurrently if parallel fan out is enabled and we're not in a transaction.
+	 * @param groups - type -> group
+	 * @param task - what to run for each group
+	 * @return type -> the group's result
+	 */
+	private <V, R> Map<String, R> fanOut(Map<String, V> groups, GroupTask<V, R> task) {
+		Map<String, R> results = new HashMap<>();
+		Executor executor = fanOutExecutor;
+		ClientSession session = currentSession();
+
+		if(executor == null || session != null || groups.size() < 2) {
+			for(Entry<String, V> entry : groups.entrySet())
+				results.put(entry.getKey(), task.run(entry.getKey(), entry.getValue(), session));
+
+			return results;
+		}
+
+		Map<String, CompletableFuture<R>> futures = new HashMap<>();
+
+		for(Entry<String, V> entry : groups.entrySet())
+			futures.put(entry.getKey(), CompletableFuture.supplyAsync(() -> task.run(entry.getKey(), entry.getValue(), null), executor));
+
+		for(Entry<String, CompletableFuture<R>> entry : futures.entrySet())
+			results.put(entry.getKey(), join(entry.getValue()));
+
+		return results;
+	}
+
+	/**
+	 * @return the identity map that applies to the current thread, or null if there is none.
+	 */
+	protected IdentityMap getIdentityMap() {
+		IdentityMap scoped = scopedIdentityMap.get();
+
+		return scoped != null ? scoped : identityMap;
 	}
 	
 
@@ -163,7 +751,7 @@ public class DBService{
 	 * @param ent
 	 */
 	public void put(Entity ent) {
-		MongoCollection<Document> col = db.getCollection(ent.getType());
+		MongoCollection<Document> col = getCollection(ent.getType());
 		
 		putInternal(ent, col);
 	}
@@ -172,35 +760,168 @@ public class DBService{
 	 * Same as calling put(Iterable<Entity>)
 	 * @param entities
 	 */
-	public void put(Entity...entities ) {
-		put(Arrays.asList(entities));
+	public BulkPutResult put(Entity...entities ) {
+		return put(Arrays.asList(entities));
 	}
 	
 	/**
-	 * Insert a list of entities into the database
+	 * Insert a list of entities into the database.
+	 * Each type is written with as few bulkWrite calls as the chunk size allows; inserts and replaces share a batch.
+	 * Failures do not throw, check the returned result.
 	 * @param ents
+	 * @return a per-entity report of what was written. Empty if the entities were buffered, see startBulkPutMode.
 	 */
-	public <T extends Entity> void put(Iterable<T> ents) {
-		Map<String, List<T>> sorted = sortEntitiesByType(ents);
-		
-		for(Entry<String, List<T>> entry : sorted.entrySet()) {
-			MongoCollection<Document> col = db.getCollection(entry.getKey());
-						
-			for(Entity ent : entry.getValue())
-				putInternal(ent, col);
+	public <T extends Entity> BulkPutResult put(Iterable<T> ents) {
+		WriteBehindBuffer buffer = bulkBuffer;
+
+		//a transaction's writes can't be flushed later, on another thread
+		if(buffer != null && false == inTransaction()) {
+			List<T> unbuffered = new ArrayList<>();
+
+			//the buffer may have been committed since we read it
+			for(T ent : ents)
+				if(false == buffer.enqueue(ent))
+					unbuffered.add(ent);
+
+			return unbuffered.isEmpty() ? new BulkPutResult() : putNow(unbuffered);
 		}
+
+		return putNow(ents);
+	}
+
+	/**
+	 * The same as put(Iterable), but never buffered.
+	 * @param ents
+	 * @return a per-entity report of what was written
+	 */
+	protected <T extends Entity> BulkPutResult putNow(Iterable<T> ents) {
+		BulkPutResult result = new BulkPutResult();
+
+		Map<String, List<T>> sorted = sortEntitiesByType(ents);
+
+		Map<String, BulkPutResult> perType = fanOut(sorted, (type, group, s) -> {
+			BulkPutResult typeResult = new BulkPutResult();
+			bulkPutInternal(group, getCollection(type), typeResult, s);
+			return typeResult;
+		});
+
+		for(BulkPutResult typeResult : perType.values())
+			result.addAll(typeResult);
+
+		for(Entity ent : result.getSucceeded())
+			onSaved(ent);
+
+		onVersionConflicts(result);
+
+		return result;
 	}
 
-	private boolean bulkPutMode = false;
-	private List<Entity> pending = null;
+	private volatile WriteBehindBuffer bulkBuffer = null;
+
+	/**
+	 * Buffer every put until bulkCommit is called, then write them all at once.
+	 * For a buffer that flushes itself, see startBulkPutMode(WriteBehindBuffer).
+	 */
 	public void startBulkPutMode(){
-		bulkPutMode = true;
+		startBulkPutMode(new WriteBehindBuffer(this, Integer.MAX_VALUE, null, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Route every put through a write behind buffer until bulkCommit is called.
+	 * @param buffer - a buffer writing to this DBService. bulkCommit closes it
+	 */
+	public synchronized void startBulkPutMode(WriteBehindBuffer buffer){
+		if(bulkBuffer != null)
+			throw new IllegalStateException("Already in bulk put mode");
+
+		bulkBuffer = buffer;
+	}
+
+	/**
+	 * Leave bulk put mode, write everything still buffered, and close the buffer. A put racing with this is written
+	 * directly instead.
+	 * @return a per-entity report of what was written by this final flush
+	 */
+	public synchronized BulkPutResult bulkCommit(){
+		WriteBehindBuffer buffer = bulkBuffer;
+		bulkBuffer = null;
+
+		if(buffer == null)
+			return new BulkPutResult();
+
+		return buffer.flushAndClose();
+	}
+
+	private volatile SaveMode saveMode = SaveMode.PARTIAL;
+
+	/**
+	 * Change how existing entities are saved. Defaults to PARTIAL, which only sends the fields that changed. REPLACE
+	 * writes the whole document, for callers that change values in ways the entity can't see.
+	 * @param mode
+	 */
+	public void setSaveMode(SaveMode mode) {
+		saveMode = mode;
 	}
 
-	public void bulkCommit(){
-		bulkPutMode = false;
-		put(pending);
-		pending = null;
+	public SaveMode getSaveMode() {
+		return saveMode;
+	}
+
+	private volatile boolean compactKeyStorage = false;
+
+	/**
+	 * Store keys written from now on as a single binary value (the 12 id bytes, then the type) instead of a
+	 * {type, id} document. That's roughly half the size, and much cheaper to decode. Keys are read in either form, so
+	 * this can be turned on with old data in place; but a query comparing against a key only matches the form it is
+	 * written in now. Entity.pullValue removes a key in either form.
+	 *
+	 * Keys whose id isn't an ObjectId are always stored as documents.
+	 * @param compact
+	 */
+	public void setCompactKeyStorage(boolean compact) {
+		compactKeyStorage = compact;
+	}
+
+	public boolean isCompactKeyStorage() {
+		return compactKeyStorage;
+	}
+
+	/**
+	 * Turn a raw value into what is stored, see BsonService.parseValue. Keys take the form set by setCompactKeyStorage
+	 * @param value
+	 * @return the formatted value
+	 */
+	protected Object parseValue(Object value) {
+		return BsonService.parseValue(value, compactKeyStorage);
+	}
+
+	private int bulkWriteChunkSize = 1000;
+	private boolean orderedBulkWrites = false;
+
+	/**
+	 * @param size - the max number of writes sent in a single bulkWrite call
+	 */
+	public void setBulkWriteChunkSize(int size) {
+		if(size < 1)
+			throw new IllegalArgumentException("Bulk write chunk size must be positive, got " + size);
+		bulkWriteChunkSize = size;
+	}
+
+	/**
+	 * Ordered bulk writes stop at the first failure. Unordered(the default) attempt every write and let the server
+	 * parallelize them.
+	 * @param ordered
+	 */
+	public void setOrderedBulkWrites(boolean ordered) {
+		orderedBulkWrites = ordered;
+	}
+
+	public int getBulkWriteChunkSize() {
+		return bulkWriteChunkSize;
+	}
+
+	public boolean isOrderedBulkWrites() {
+		return orderedBulkWrites;
 	}
 	
 	/**
@@ -210,30 +931,444 @@ public class DBService{
 	 */
 	private void putInternal(Entity ent, MongoCollection<Document> col) {
 
-		if(bulkPutMode) {
-			if (pending == null)
-				pending = new ArrayList<>();
-
-			pending.add(ent);
+		WriteBehindBuffer buffer = bulkBuffer;
 
+		//the buffer may have been committed since we read it, in which case we write it ourselves
+		if(buffer != null && false == inTransaction() && buffer.enqueue(ent))
 			return;
-		}
 
 		
 		//TODO consider a put event handler
 		
-		if(ent.projected()) {
-			Iris.warning("Attempted to save projected entity of key");
+		WriteModel<Document> model = getWriteModel(ent);
+
+		if(model == null)
 			return;
-		}
 
 		Iris.debug("SAVING ENTITY " + ent.getId() + " of type " + ent.getType() + " of name " + ent.getName());
 
+		ClientSession s = currentSession();
+
+		if(model instanceof InsertOneModel<Document> insert) {
+			if(s == null)
+				col.insertOne(insert.getDocument());
+			else
+				col.insertOne(s, insert.getDocument());
+		}
+		else if(model instanceof ReplaceOneModel<Document> replace) {
+			UpdateResult written = s == null ? col.replaceOne(replace.getFilter(), replace.getReplacement())
+					: col.replaceOne(s, replace.getFilter(), replace.getReplacement());
+
+			checkVersion(ent, written.getMatchedCount());
+		}
+		else if(model instanceof UpdateOneModel<Document> update) {
+			UpdateResult written = s == null ? col.updateOne(update.getFilter(), update.getUpdate())
+					: col.updateOne(s, update.getFilter(), update.getUpdate());
+
+			checkVersion(ent, written.getMatchedCount());
+		}
+
+		onSaved(ent);
+	}
+
+	/**
+	 * Put a group of entities of the same type to the DB, chunked into bulkWrite calls.
+	 * @param ents - the entities to put, all of the collection's type
+	 * @param col - the MongoCollection we're putting these documents to
+	 * @param result - where the outcome of each entity is recorded
+	 */
+	private <T extends Entity> void bulkPutInternal(List<T> ents, MongoCollection<Document> col, BulkPutResult result, ClientSession session) {
+		List<Entity> batch = new ArrayList<>();
+		List<WriteModel<Document>> models = new ArrayList<>();
+
+		for(T ent : ents) {
+			WriteModel<Document> model = getWriteModel(ent);
+
+			if(model == null) {
+				result.addSkipped(ent);
+				continue;
+			}
+
+			batch.add(ent);
+			models.add(model);
+
+			if(models.size() >= bulkWriteChunkSize) {
+				bulkWriteInternal(batch, models, col, result, session);
+				batch = new ArrayList<>();
+				models = new ArrayList<>();
+			}
+		}
+
+		if(models.size() > 0)
+			bulkWriteInternal(batch, models, col, result, session);
+	}
+
+	/**
+	 * Send a single bulkWrite, mapping any write errors back onto the entities that caused them.
+	 * This doesn't call onSaved, since it may run on a fan out thread.
+	 * @param batch - the entities, index aligned with models
+	 * @param models - the write models
+	 * @param col - the MongoCollection we're writing to
+	 * @param result - where the outcome of each entity is recorded
+	 * @param session - the session to write with. This can be null.
+	 */
+	private void bulkWriteInternal(List<Entity> batch, List<WriteModel<Document>> models, MongoCollection<Document> col, BulkPutResult result, ClientSession session) {
+		Iris.debug("BULK SAVING " + models.size() + " ENTITIES of type " + col.getNamespace().getCollectionName());
+
+		try {
+			BulkWriteOptions options = new BulkWriteOptions().ordered(orderedBulkWrites);
+
+			BulkWriteResult written = session == null ? col.bulkWrite(models, options) : col.bulkWrite(session, models, options);
+
+			//a versioned save that matched nothing lost a race; find out which
+			if(hasVersionConflicts(batch, written)) {
+				resolveVersionConflicts(batch, col, result);
+				return;
+			}
+
+			for(Entity ent : batch)
+				result.addSucceeded(ent);
+		}
+		catch(MongoException e) {
+			//the server aborted the transaction with it. Recording it would only fail the commit, with a less useful error
+			if(session != null && session.hasActiveTransaction())
+				throw e;
+
+			List<Entity> unresolved = recordBulkWriteError(batch, e, result);
+
+			if(false == unresolved.isEmpty())
+				resolveVersionConflicts(unresolved, col, result);
+		}
+	}
+
+	/**
+	 * Read back the versions of a versioned bulkWrite's documents, and record which of its saves went through.
+	 * @param ents - the entities whose writes were sent without an error
+	 */
+	private void resolveVersionConflicts(List<Entity> ents, MongoCollection<Document> col, BulkPutResult result) {
+		try {
+			List<Document> stored = find(col, getFilterForKeys(ents)).projection(Projections.include(Entity.VERSION_FIELD))
+					.into(new ArrayList<>());
+
+			recordVersionConflicts(ents, stored, result);
+		}
+		catch(MongoException e) {
+			for(Entity ent : ents)
+				result.addFailure(ent, e.getCode(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Map a failed bulkWrite back onto the entities that were in it. This doesn't call onSaved.
+	 *
+	 * A versioned save without a write error may still have matched nothing. If the write result says some did, the
+	 * saves without an error are returned instead of recorded, for the caller to sort out with recordVersionConflicts.
+	 * @param batch - the entities, index aligned with the write models that were sent
+	 * @param e - what the bulkWrite threw
+	 * @param result - where the outcome of each entity is recorded
+	 * @return the entities whose version still has to be checked. Usually empty
+	 */
+	protected List<Entity> recordBulkWriteError(List<Entity> batch, MongoException e, BulkPutResult result) {
+		//anything other than write errors (network, timeouts) leaves the whole chunk in an unknown state
+		if(!(e instanceof MongoBulkWriteException bulkError)) {
+			for(Entity ent : batch)
+				result.addFailure(ent, e.getCode(), e.getMessage());
+			return Collections.emptyList();
+		}
+
+		Map<Integer, BulkWriteError> errors = new HashMap<>();
+		int firstError = batch.size();
+
+		for(BulkWriteError error : bulkError.getWriteErrors()) {
+			errors.put(error.getIndex(), error);
+			firstError = Math.min(firstError, error.getIndex());
+		}
+
+		List<Entity> written = new ArrayList<>();
+
+		for(int i = 0; i < batch.size(); i++) {
+			BulkWriteError error = errors.get(i);
+
+			if(error != null)
+				result.addFailure(batch.get(i), error.getCode(), error.getMessage());
+			//ordered writes stop at the first error, so nothing after it was attempted
+			else if(orderedBulkWrites && i > firstError)
+				result.addFailure(batch.get(i), -1, "Not attempted; an earlier write in this ordered batch failed");
+			else
+				written.add(batch.get(i));
+		}
+
+		//the write result only counts the writes that went through
+		if(hasVersionConflicts(written, bulkError.getWriteResult()))
+			return written;
+
+		for(Entity ent : written)
+			result.addSucceeded(ent);
+
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Throw if a single versioned save didn't match its document.
+	 * @param ent - the entity that was saved
+	 * @param matched - how many documents the save matched
+	 */
+	protected void checkVersion(Entity ent, long matched) {
+		if(matched > 0 || false == isOptimisticLocking(ent.getType()))
+			return;
+
+		//whatever we hold of it is stale, so a retry has to go to the server
+		onKeyModified(ent.getKey());
+
+		throw new OptimisticLockException(ent.getKey(), ent.getVersion());
+	}
+
+	/**
+	 * @param batch - the entities of a bulkWrite that went through, index aligned with its write models
+	 * @param written - what the server reported
+	 * @return true if some of the versioned saves didn't match their document
+	 */
+	protected boolean hasVersionConflicts(List<Entity> batch, BulkWriteResult written) {
+		if(batch.isEmpty() || false == isOptimisticLocking(batch.get(0).getType()))
+			return false;
+
+		return written.getInsertedCount() + written.getMatchedCount() < batch.size();
+	}
+
+	/**
+	 * @param batch - entities that were saved
+	 * @return a filter matching the documents of the ones that already existed
+	 */
+	protected Bson getFilterForKeys(List<Entity> batch) {
+		List<Object> ids = new ArrayList<>();
+
+		for(Entity ent : batch) {
+			if(false == ent.isNew())
+				ids.add(BsonService.getIdValue(ent.getKey()));
+		}
+
+		return Filters.in("_id", ids);
+	}
+
+	/**
+	 * Sort out which saves of a versioned bulkWrite went through. A save went through if the document is at the
+	 * version it wrote; otherwise someone else got there first, or deleted it. This doesn't call onSaved.
+	 *
+	 * This reads after the write, so a save that went through and was then immediately saved over again by someone
+	 * else is reported as a conflict too. Retrying it is harmless.
+	 * @param batch - the entities that were written
+	 * @param stored - the _id and version of their documents, read after the write
+	 * @param result - where the outcome of each entity is recorded
+	 */
+	protected void recordVersionConflicts(List<Entity> batch, List<Document> stored, BulkPutResult result) {
+		Map<Object, Long> versions = new HashMap<>();
+
+		for(Document doc : stored) {
+			Object version = doc.get(Entity.VERSION_FIELD);
+			versions.put(doc.get("_id"), version instanceof Number n ? n.longValue() : 0L);
+		}
+
+		for(Entity ent : batch) {
+			if(ent.isNew()) {
+				result.addSucceeded(ent);
+				continue;
+			}
+
+			Long version = versions.get(BsonService.getIdValue(ent.getKey()));
+
+			if(version != null && version == ent.getVersion() + 1)
+				result.addSucceeded(ent);
+			else
+				result.addFailure(ent, BulkPutResult.VERSION_CONFLICT, new OptimisticLockException(ent.getKey(), ent.getVersion()).getMessage());
+		}
+	}
+
+	/**
+	 * Drop anything held of the entities that lost a version conflict, so a retry reads what is stored.
+	 * @param result
+	 */
+	protected void onVersionConflicts(BulkPutResult result) {
+		for(BulkPutResult.Failure failure : result.getFailures()) {
+			if(failure.isVersionConflict())
+				onKeyModified(failure.getEntity().getKey());
+		}
+	}
+
+	/**
+	 * @param ent - a projected entity
+	 * @return every field the entity holds: its projections, and anything set since. Projected sub fields (a.b)
+	 * are dropped if their top level field was set, since mongo won't update both in one go.
+	 */
+	private Set<String> getProjectedFields(Entity ent) {
+		Set<String> result = new HashSet<>(ent.getUnsavedFields());
 
-		if(ent.isNew())
-			col.insertOne(session, ent.raw);
+		for(String field : ent.getProjections()) {
+			int dot = field.indexOf('.');
+
+			if(dot < 0 || false == result.contains(field.substring(0, dot)))
+				result.add(field);
+		}
+
+		result.remove("_id");
+		result.remove(Entity.VERSION_FIELD); //written along with every save already
+
+		return result;
+	}
+
+	/**
+	 * Fetch the fields a projected entity doesn't hold yet. This is called by the entity the first time a field
+	 * outside of its projection is read.
+	 * @param ent - a projected entity
+	 */
+	protected void loadRemainingFields(Entity ent) {
+		Key key = ent.getKey();
+
+		Iris.debug("LOADING REMAINING FIELDS OF PROJECTED ENTITY " + key);
+
+		EntityCache cache = readCache();
+		long stamp = cache == null ? 0 : cache.stamp();
+
+		List<Document> docs = fetchRawInternal(key.getType(), BsonService.getFilterForKey(key), null);
+
+		//if it's been deleted since, there is nothing more to load
+		Document full = docs.isEmpty() ? new Document() : docs.get(0);
+
+		if(cache != null && false == docs.isEmpty())
+			cache.populate(key, full, stamp);
+
+		ent.mergeRemainingFields(full);
+	}
+
+	/**
+	 * Called after an entity was successfully written.
+	 * @param ent
+	 */
+	protected void onSaved(Entity ent) {
+		Transaction tx = transaction.get();
+
+		if(tx != null)
+			tx.beforeSave(ent);
+
+		//only an insert or a full replace leaves the document exactly as we hold it. A partial update merges into
+		//whatever the server has, and atomic updates apply to its values rather than ours. A projected entity only
+		//holds part of the document, so what it holds can't be cached as the whole of it
+		boolean cacheable = false == ent.projected() && (ent.isNew() || (saveMode == SaveMode.REPLACE && ent.getPendingUpdates().isEmpty()));
+
+		//a fresh entity was inserted at version 1 already
+		if(false == ent.isNew() && isOptimisticLocking(ent.getType()))
+			ent.setVersion(ent.getVersion() + 1);
+
+		ent.markSaved();
+
+		IdentityMap map = getIdentityMap();
+
+		//a write snapshot stands in for the entity it was taken from, see Entity.detachWrite. Whatever was mapped for
+		//the key before may be another object, holding what was stored before this save
+		if(map != null)
+			map.replace(ent.getSource());
+
+		if(entityCache == null)
+			return;
+
+		//the write isn't visible to anyone else until it commits
+		if(tx != null) {
+			tx.touchedKeys.add(ent.getKey());
+			entityCache.invalidate(ent.getKey());
+		}
+		else if(cacheable)
+			entityCache.refresh(ent.getKey(), ent.raw);
 		else
-			col.replaceOne(session, BsonService.getFilterForId(ent.getId()), ent.raw);
+			entityCache.invalidate(ent.getKey());
+	}
+
+	/**
+	 * Called after documents of a type were modified or deleted by a query, so we can't tell which keys changed.
+	 * @param type
+	 */
+	protected void onTypeModified(String type) {
+		IdentityMap map = getIdentityMap();
+
+		if(map != null)
+			map.removeType(type);
+
+		Transaction tx = transaction.get();
+		if(tx != null)
+			tx.touchedTypes.add(type);
+
+		if(entityCache != null)
+			entityCache.invalidateType(type);
+	}
+
+	/**
+	 * @param ent
+	 * @return the write that saves this entity, or null if it should not be saved.
+	 */
+	protected WriteModel<Document> getWriteModel(Entity ent) {
+		//changes made through KeyLists only reach the document now
+		ent.flushKeyLists();
+
+		boolean versioned = isOptimisticLocking(ent.getType());
+
+		if(ent.isNew()) {
+			ent.getKey(); //allocates the key and _id if it hasn't been yet
+
+			if(versioned)
+				ent.setVersion(1);
+
+			return new InsertOneModel<>(ent.raw);
+		}
+
+		Bson filter = BsonService.getFilterForKey(ent.getKey());
+		long nextVersion = ent.getVersion() + 1;
+
+		//only write over the version we loaded. The entity's own version is bumped once the write succeeds, see onSaved
+		if(versioned)
+			filter = Filters.and(filter, BsonService.getFilterForVersion(ent.getVersion()));
+
+		//nothing changed, nothing to send
+		if(false == ent.isDirty())
+			return null;
+
+		//a projected entity can't replace the document, so it writes back everything it holds instead
+		if(saveMode == SaveMode.REPLACE && ent.projected()) {
+			Set<String> fields = getProjectedFields(ent);
+			fields.removeAll(ent.getPendingUpdates().keySet());
+
+			Bson update = BsonService.generateEntityUpdates(ent.raw, fields, ent.getPendingUpdates());
+
+			return new UpdateOneModel<>(filter, withVersion(update, versioned, nextVersion));
+		}
+
+		//atomic updates only stay atomic as an update; a replace would write over whatever they raced with
+		if(saveMode == SaveMode.REPLACE && false == ent.getPendingUpdates().isEmpty()) {
+			Set<String> fields = new HashSet<>(ent.raw.keySet());
+			fields.addAll(ent.getDirtyFields()); //removed fields are unset
+			fields.removeAll(ent.getPendingUpdates().keySet());
+			fields.remove("_id");
+			fields.remove(Entity.VERSION_FIELD);
+
+			Bson update = BsonService.generateEntityUpdates(ent.raw, fields, ent.getPendingUpdates());
+
+			return new UpdateOneModel<>(filter, withVersion(update, versioned, nextVersion));
+		}
+
+		if(saveMode == SaveMode.REPLACE) {
+			if(false == versioned)
+				return new ReplaceOneModel<>(filter, ent.raw);
+
+			Document replacement = new Document(ent.raw);
+			replacement.put(Entity.VERSION_FIELD, nextVersion);
+
+			return new ReplaceOneModel<>(filter, replacement);
+		}
+
+		Bson update = BsonService.generateEntityUpdates(ent.raw, ent.getDirtyFields(), ent.getPendingUpdates());
+
+		return new UpdateOneModel<>(filter, withVersion(update, versioned, nextVersion));
+	}
+
+	private static Bson withVersion(Bson update, boolean versioned, long version) {
+		return versioned ? Updates.combine(update, Updates.set(Entity.VERSION_FIELD, version)) : update;
 	}
 	
 	public void deleteEntity(Entity ent) {		
@@ -263,7 +1398,7 @@ public class DBService{
 	 * @param key
 	 */
 	public void delete(Key key) {
-		MongoCollection<Document> col = db.getCollection(key.getType());
+		MongoCollection<Document> col = getCollection(key.getType());
 		
 		deleteInternal(key, col);
 	}
@@ -275,19 +1410,27 @@ public class DBService{
 		delete(Arrays.asList(keys));
 	}
 	/**
-	 * Delete a collection of entities by their key.
+	 * Delete a collection of entities by their key. Each type is deleted with a single deleteMany.
 	 * @param keys
 	 */
 	public void delete(Iterable<Key> keys) {
 		
 		Map<String, List<Key>> sorted = sortKeysByType(keys);
-		
-		for(Entry<String, List<Key>> entry : sorted.entrySet()) {
-			MongoCollection<Document> col = db.getCollection(entry.getKey());
-			
-			for(Key key : entry.getValue())
-				deleteInternal(key, col);
-		}
+
+		fanOut(sorted, (type, group, s) -> {
+			List<ObjectId> ids = new ArrayList<>();
+
+			for(Key key : group)
+				ids.add(key.toObjectId());
+
+			MongoCollection<Document> col = getCollection(type);
+			Bson filter = Filters.in("_id", ids);
+
+			return s == null ? col.deleteMany(filter) : col.deleteMany(s, filter);
+		});
+
+		for(List<Key> group : sorted.values())
+			group.forEach(this::onDeleted);
 	}
 	
 	/**
@@ -296,7 +1439,40 @@ public class DBService{
 	 * @param col
 	 */
 	private void deleteInternal(Key key, MongoCollection<Document> col) {
-		col.deleteOne(session, BsonService.getFilterForId(key.getId()));
+		ClientSession s = currentSession();
+		Bson filter = BsonService.getFilterForKey(key);
+
+		if(s == null)
+			col.deleteOne(filter);
+		else
+			col.deleteOne(s, filter);
+
+		onDeleted(key);
+	}
+
+	/**
+	 * Called after an entity was deleted.
+	 * @param key
+	 */
+	protected void onDeleted(Key key) {
+		onKeyModified(key);
+	}
+
+	/**
+	 * Called after a document was changed on the server, behind the back of whatever we have loaded for it.
+	 * @param key
+	 */
+	protected void onKeyModified(Key key) {
+		IdentityMap map = getIdentityMap();
+		if(map != null)
+			map.remove(key);
+
+		Transaction tx = transaction.get();
+		if(tx != null)
+			tx.touchedKeys.add(key);
+
+		if(entityCache != null)
+			entityCache.invalidate(key);
 	}
 	
 	/**
@@ -304,32 +1480,85 @@ public class DBService{
 	 * 
 	 * All of these entities will not *necessarily* be the same type. You will need to cast to the appropriate type.
 	 * @param keys
-	 * @return
+	 * @return the entities that exist, in the order of the given keys
 	 */
 	public <T extends Entity> List<T> getEntities(Iterable<Key> keys){
-		List<T> result = new ArrayList<>();
+		Map<Key, T> found = new HashMap<>();
+		IdentityMap map = getIdentityMap();
+		EntityCache cache = readCache();
 
-		Map<String, List<Key>> sorted = sortKeysByType(keys);
+		//anything already loaded in this scope doesn't need to go to the server
+		List<Key> missing = new ArrayList<>();
+		for(Key key : keys) {
+			if(key == null)
+				continue;
 
-		for(Entry<String, List<Key>> entry : sorted.entrySet()) {
-			String type = entry.getKey();
-			List<ObjectId> ids = new ArrayList<>();
+			T loaded = map == null ? null : map.get(key);
 
-			for(Key key : entry.getValue()) 
-				ids.add(new ObjectId(key.getId()));
-			
-			Bson filter = Filters.in("_id", ids);
-			
-			MongoCollection<Document> col = db.getCollection(type);
-			
-			for(Document doc : col.find(session, filter)) {
-				result.add(entityService.buildEntity(this, type, doc));
+			if(loaded != null) {
+				found.put(key, loaded);
+				continue;
 			}
+
+			Document cached = cache == null ? null : cache.get(key);
+
+			if(cached != null)
+				found.put(key, buildFetchedEntity(key.getType(), cached, null));
+			else
+				missing.add(key);
+		}
+
+		long stamp = cache == null ? 0 : cache.stamp();
+
+		//entities are built back on this thread, where the identity map applies
+		for(Entry<Key, Document> entry : fetchRawByKeys(missing).entrySet()) {
+			Key key = entry.getKey();
+
+			if(cache != null)
+				cache.populate(key, entry.getValue(), stamp);
+
+			found.put(key, buildFetchedEntity(key.getType(), entry.getValue(), null));
+		}
+
+		List<T> result = new ArrayList<>();
+		for(Key key : keys) {
+			T ent = key == null ? null : found.get(key);
+
+			if(ent != null)
+				result.add(ent);
 		}
 		
 		return result;
 	}
 
+	/**
+	 * Fetch the raw documents for a list of keys, with one $in per type.
+	 * @param keys
+	 * @return key -> document, for every key that exists
+	 */
+	protected Map<Key, Document> fetchRawByKeys(List<Key> keys){
+		Map<String, List<Document>> fetched = fanOut(sortKeysByType(keys), (type, group, s) -> {
+			List<ObjectId> ids = new ArrayList<>();
+
+			for(Key key : group)
+				ids.add(key.toObjectId());
+
+			Bson filter = Filters.in("_id", ids);
+
+			MongoCollection<Document> col = getCollection(type);
+
+			return (s == null ? col.find(filter) : col.find(s, filter)).into(new ArrayList<>());
+		});
+
+		Map<Key, Document> result = new HashMap<>();
+
+		for(Entry<String, List<Document>> entry : fetched.entrySet())
+			for(Document doc : entry.getValue())
+				result.put(new Key(entry.getKey(), doc.getObjectId("_id")), doc);
+
+		return result;
+	}
+
 	public <T extends Entity> T getEntity(String type, String id){
 		return getEntity(new Key(type, id));
 	}
@@ -340,25 +1569,125 @@ public class DBService{
 	 * @return
 	 */
 	public <T extends Entity> T getEntity(Key key) {
+		IdentityMap map = getIdentityMap();
+
+		if(map != null) {
+			T loaded = map.get(key);
+			if(loaded != null)
+				return loaded;
+		}
+
+		EntityCache cache = readCache();
+
+		Document cached = cache == null ? null : cache.get(key);
+		if(cached != null)
+			return buildFetchedEntity(key.getType(), cached, null);
+
+		//anything invalidated while we read drops what we read, see EntityCache.populate
+		long stamp = cache == null ? 0 : cache.stamp();
+
+		//the batch is fetched by another thread, outside of our transaction
+		BatchLoader loader = batchLoader;
+		if(loader != null && false == inTransaction()) {
+			Document doc = join(loader.load(key));
+
+			if(doc == null)
+				return null;
+
+			if(cache != null)
+				cache.populate(key, doc, stamp);
+
+			return buildFetchedEntity(key.getType(), doc, null);
+		}
 		
-		List<Document> docs = fetchRawInternal(key.getType(), BsonService.getFilterForId(key.getId()), null);
+		List<Document> docs = fetchRawInternal(key.getType(), BsonService.getFilterForKey(key), null);
 
 		if(docs.size() == 0)
 			return null;
 		
 		if(docs.size() != 1)
 			throw new IllegalStateException("cant have multiple docs with the same identifier. delete this project.");
+
+		if(cache != null)
+			cache.populate(key, docs.get(0), stamp);
 		
-		return entityService.buildEntity(this, key.getType(), docs.get(0));
+		return buildFetchedEntity(key.getType(), docs.get(0), null);
 	}
 
 	/**
+	 * This used to return the opposite of its name.
 	 * @param key
 	 * @return true if an entity already exists for the given key.
 	 */
+	@Deprecated
 	public boolean entityExists(Key key){
-		MongoCollection<Document> collection = db.getCollection(key.getType());
-		return collection.countDocuments(session, BsonService.getFilterForId(key.getId())) == 0;
+		return exists(key);
+	}
+
+	/**
+	 * Check a key without loading its entity. Anything already loaded in this scope or cached counts as existing.
+	 * @param key
+	 * @return true if an entity exists for the given key.
+	 */
+	public boolean exists(Key key) {
+		IdentityMap map = getIdentityMap();
+		if(map != null && map.contains(key))
+			return true;
+
+		EntityCache cache = readCache();
+		if(cache != null && cache.get(key) != null)
+			return true;
+
+		return existsInternal(key.getType(), BsonService.getFilterForKey(key));
+	}
+
+	/**
+	 * @param q - only the filters are used
+	 * @return true if at least one document matches the query.
+	 */
+	public boolean exists(Query q) {
+		return existsInternal(q.getType(), BsonService.generateCompositeFilter(q.filters, this::parseValue));
+	}
+
+	/**
+	 * Stops at the first match, and only sends back its _id.
+	 */
+	private boolean existsInternal(String type, Bson filter) {
+		return find(db.getCollection(type), filter)
+				.projection(Projections.include("_id"))
+				.limit(1)
+				.first() != null;
+	}
+
+	/**
+	 * Check that a query matches at least n documents. The server stops counting at n, so this stays cheap when far
+	 * more documents match.
+	 * @param q - only the filters are used
+	 * @param n
+	 * @return true if at least n documents match
+	 */
+	public boolean countAtLeast(Query q, long n) {
+		if(n <= 0)
+			return true;
+
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+		MongoCollection<Document> col = db.getCollection(q.getType());
+		ClientSession s = currentSession();
+		CountOptions options = new CountOptions().limit((int) Math.min(n, Integer.MAX_VALUE));
+
+		long count = s == null ? col.countDocuments(filter, options) : col.countDocuments(s, filter, options);
+
+		return count >= n;
+	}
+
+	/**
+	 * The number of documents of a type, read from the collection's metadata rather than counted. This can be off
+	 * after an unclean shutdown or while chunks are migrating, and ignores transactions.
+	 * @param type
+	 * @return about how many entities of the type exist
+	 */
+	public long estimatedCount(String type) {
+		return db.getCollection(type).estimatedDocumentCount();
 	}
 	
 	/**
@@ -382,17 +1711,60 @@ public class DBService{
 	protected <T extends Entity> List<T> fetchInternal(String type, Bson filter, Set<String> projections){
 		
 		Bson composedProj = BsonService.generateProjections(projections);
-		
-		List<Document> rawList = fetchRawInternal(type, filter, composedProj);
+
+		return buildAll(type, find(getCollection(type), filter).projection(composedProj), projections);
+	}
+
+	/**
+	 * Build every result of a find into entities.
+	 * @param type - the entity type we're fetching
+	 * @param find - the find to run
+	 * @param projections - the fields the find is projected to. This can be null.
+	 * @return
+	 */
+	protected <T extends Entity> List<T> buildAll(String type, FindIterable<Document> find, Set<String> projections) {
 		List<T> result = new ArrayList<>();
-		
-		for(Document doc : rawList) {
-			result.add(entityService.buildEntity(this, type, doc));
+
+		if(projections != null && projections.isEmpty())
+			projections = null;
+
+		//build straight off the cursor, rather than holding every document in a list first
+		try(MongoCursor<Document> cursor = find.iterator()){
+			while(cursor.hasNext()){
+				result.add(buildFetchedEntity(type, cursor.next(), projections));
+			}
 		}
-		
+
 		return result;
 	}
 
+	/**
+	 * Build an entity out of a document we just fetched. If an identity map applies, the entity already loaded for
+	 * that key wins over the fresh copy, so callers never see two diverging objects for one document.
+	 * @param type - the entity type
+	 * @param doc - the fetched document
+	 * @param projections - the fields the document was projected to. This can be null.
+	 * @return
+	 */
+	protected <T extends Entity> T buildFetchedEntity(String type, Document doc, Set<String> projections) {
+		IdentityMap map = getIdentityMap();
+
+		if(map == null)
+			return entityService.buildEntity(this, type, doc, projections);
+
+		T loaded = map.get(new Key(type, doc.getObjectId("_id")));
+		if(loaded != null)
+			return loaded;
+
+		T result = entityService.buildEntity(this, type, doc, projections);
+
+		//a projected entity is incomplete, so it can't stand in for the document
+		if(result.projected())
+			return result;
+
+		return map.put(result);
+	}
+
 
 
 	private List<Document> fetchRawInternal(String collection, Bson filter, Bson projections){
@@ -409,10 +1781,10 @@ public class DBService{
 	private List<Document> fetchRawInternal(String collection, Bson filter, Bson projections, int limit) {
 		List<Document> result = new ArrayList<>();
 
-		MongoCollection<Document> col = db.getCollection(collection);
+		MongoCollection<Document> col = getCollection(collection);
 
 		//I think this is better???
-		try(MongoCursor<Document> test = col.find(filter).projection(projections).limit(limit).iterator()){
+		try(MongoCursor<Document> test = find(col, filter).projection(projections).limit(limit).iterator()){
 			while(test.hasNext()){
 				result.add(test.next());
 			}
@@ -438,27 +1810,397 @@ public class DBService{
 	 * queries
 	 */
 	public <T extends Entity> List<T> runEntityQuery(Query q){
-		Bson filter = BsonService.generateCompositeFilter(q.filters);
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
 
-		return fetchInternal(q.getType(), filter, q.projections);
+		List<T> result = buildAll(q.getType(), findInternal(q, filter), q.projections);
+
+		if(false == q.prefetches.isEmpty())
+			prefetch(result, q.prefetches.toArray(new String[0]));
+
+		return result;
 	}
 
-	public void runDeleteQuery(Query q) {
-		Bson filter = BsonService.generateCompositeFilter(q.filters);
+	/**
+	 * Resolve the references of a whole list of entities at once, so that reading them later costs no I/O.
+	 *
+	 * Every key referenced by the given properties, across all of the entities, is fetched with one query per type.
+	 * The results are attached to the entities, and picked up by getEntityFromKeyValue and getReferencedEntityList.
+	 * @param entities - the entities whose references we're resolving
+	 * @param paths - key or key list properties. Dotted paths (owner.team) resolve owner, then team on the owners.
+	 */
+	public void prefetch(Iterable<? extends Entity> entities, String...paths) {
+		//property -> the rest of each path through it
+		Map<String, List<String>> tree = new LinkedHashMap<>();
+
+		for(String path : paths) {
+			int dot = path.indexOf('.');
+			String property = dot < 0 ? path : path.substring(0, dot);
+
+			List<String> rest = tree.computeIfAbsent(property, p -> new ArrayList<>());
+			if(dot >= 0)
+				rest.add(path.substring(dot + 1));
+		}
+
+		//collect the keys of every property up front, so shared types go out in the same query
+		Set<Key> keys = new LinkedHashSet<>();
+
+		for(Entity ent : entities)
+			for(String property : tree.keySet())
+				keys.addAll(ent.getReferencedKeys(property));
+
+		if(keys.isEmpty())
+			return;
+
+		Map<Key, Entity> loaded = new HashMap<>();
+		for(Entity ent : getEntities(keys))
+			loaded.put(ent.getKey(), ent);
+
+		for(Entity ent : entities)
+			for(String property : tree.keySet())
+				for(Key key : ent.getReferencedKeys(property))
+					ent.attachReference(key, loaded.get(key));
+
+		for(Entry<String, List<String>> entry : tree.entrySet()) {
+			if(entry.getValue().isEmpty())
+				continue;
+
+			Set<Entity> next = new LinkedHashSet<>();
+
+			for(Entity ent : entities)
+				for(Key key : ent.getReferencedKeys(entry.getKey()))
+					if(loaded.get(key) != null)
+						next.add(loaded.get(key));
+
+			prefetch(next, entry.getValue().toArray(new String[0]));
+		}
+	}
+
+	/**
+	 * Fetch a single page of results, using keyset ("search after") pagination rather than skip. Every page costs
+	 * about the same as the first, no matter how deep it is.
+	 *
+	 * Pages are ordered by the query's sorts, with _id added last as a tie breaker. Sorted properties should be
+	 * indexed, and present on every document. The query's limit and skip are ignored.
+	 * @param q - the query. Use the same query for every page.
+	 * @param pageSize - the max number of entities per page
+	 * @param continuationToken - the token from the previous page, or null for the first page
+	 * @return the page
+	 */
+	public <T extends Entity> Page<T> runPagedQuery(Query q, int pageSize, String continuationToken) {
+		if(pageSize < 1)
+			throw new IllegalArgumentException("Page size must be positive, got " + pageSize);
+
+		LinkedHashMap<String, Boolean> keyset = new LinkedHashMap<>(q.sorts);
+
+		if(false == keyset.containsKey("_id")) {
+			boolean ascending = true;
+			for(Boolean value : keyset.values())
+				ascending = value;
+
+			keyset.put("_id", ascending);
+		}
+
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+
+		if(continuationToken != null) {
+			List<Object> position = BsonService.decodeContinuationToken(continuationToken, keyset.size());
+			filter = Filters.and(filter, BsonService.generateKeysetFilter(keyset, position));
+		}
+
+		//the sorted properties have to come back, or we can't build the next token
+		Set<String> projections = q.projections;
+		if(false == projections.isEmpty()) {
+			projections = new HashSet<>(projections);
+			projections.addAll(keyset.keySet());
+		}
+
+		FindIterable<Document> find = find(getCollection(q.getType()), filter)
+				.projection(BsonService.generateProjections(projections))
+				.sort(BsonService.generateSorts(keyset))
+				.limit(pageSize + 1); //one extra, to tell if there is another page
+
+		List<Document> docs = new ArrayList<>();
+		try(MongoCursor<Document> cursor = find.iterator()) {
+			while(cursor.hasNext())
+				docs.add(cursor.next());
+		}
+
+		String nextToken = null;
+
+		if(docs.size() > pageSize) {
+			docs.remove(pageSize);
+
+			Document last = docs.get(pageSize - 1);
+			List<Object> position = new ArrayList<>();
+
+			for(String property : keyset.keySet())
+				position.add(BsonService.getPath(last, property));
+
+			nextToken = BsonService.encodeContinuationToken(position);
+		}
+
+		Set<String> projected = projections.isEmpty() ? null : projections;
+
+		List<T> result = new ArrayList<>();
+		for(Document doc : docs)
+			result.add(buildFetchedEntity(q.getType(), doc, projected));
+
+		if(false == q.prefetches.isEmpty())
+			prefetch(result, q.prefetches.toArray(new String[0]));
+
+		return new Page<>(result, nextToken);
+	}
+
+	/**
+	 * Apply everything a query describes, apart from its filters, to a find.
+	 * @param q - the query
+	 * @param filter - the composed bson filter
+	 * @return the find, ready to iterate
+	 */
+	protected FindIterable<Document> findInternal(Query q, Bson filter) {
+		return findInternal(q.getType(), filter, BsonService.generateProjections(q.projections),
+				BsonService.generateSorts(q.sorts), q.getSkip(), q.getLimit(), q.getBatchSize());
+	}
+
+	/**
+	 * Set up a find out of already composed bson.
+	 * @param type - the entity type
+	 * @param filter - the composed bson filter
+	 * @param projection - the composed projection. This can be null.
+	 * @param sort - the composed sort. This can be null.
+	 * @param skip - 0 for none
+	 * @param limit - 0 for none
+	 * @param batchSize - 0 for the default
+	 * @return the find, ready to iterate
+	 */
+	protected FindIterable<Document> findInternal(String type, Bson filter, Bson projection, Bson sort, int skip, int limit, int batchSize) {
+		FindIterable<Document> find = find(getCollection(type), filter).projection(projection);
+
+		if(sort != null)
+			find.sort(sort);
+
+		if(skip > 0)
+			find.skip(skip);
+
+		if(limit > 0)
+			find.limit(limit);
+
+		if(batchSize <= 0)
+			batchSize = cursorBatchSize;
+		if(batchSize > 0)
+			find.batchSize(batchSize);
+
+		return find;
+	}
+
+	private int cursorBatchSize = 0;
+
+	/**
+	 * The batch size used by streamed queries that don't set their own. 0 leaves it up to the driver.
+	 * @param batchSize
+	 */
+	public void setCursorBatchSize(int batchSize) {
+		cursorBatchSize = batchSize;
+	}
+
+	public int getCursorBatchSize() {
+		return cursorBatchSize;
+	}
+
+	/**
+	 * Run a query without loading the whole result into memory. Entities are built as the cursor is read.
+	 *
+	 * The cursor MUST be closed, use try-with-resources. Streamed entities bypass the identity map and entity
+	 * cache, so memory use stays flat.
+	 * @param q
+	 * @return an open cursor over the results
+	 */
+	public <T extends Entity> EntityCursor<T> iterateEntityQuery(Query q) {
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+
+		FindIterable<Document> find = findInternal(q, filter);
+
+		Set<String> projected = q.projections.isEmpty() ? null : q.projections;
+
+		return new EntityCursor<>(this, q.getType(), find.iterator(), projected);
+	}
+
+	/**
+	 * Same as iterateEntityQuery, as a Stream. The stream MUST be closed, use try-with-resources.
+	 * @param q
+	 * @return a lazy stream over the results
+	 */
+	public <T extends Entity> Stream<T> streamEntityQuery(Query q) {
+		EntityCursor<T> cursor = iterateEntityQuery(q);
+
+		return cursor.stream();
+	}
 
-		db.getCollection(q.getType()).deleteMany(session, filter);
+	public void runDeleteQuery(Query q) {
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
 
+		deleteManyInternal(q.getType(), filter);
 	}
 	public void runUpdate(Query q) {
-		Bson filters = BsonService.generateCompositeFilter(q.filters);
-		Bson updates = BsonService.generateUpdates(q.updates);
+		Bson filters = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+		Bson updates = BsonService.generateUpdates(q.updates, this::parseValue);
+
+		updateManyInternal(q.getType(), filters, updates, q.isUpsert());
+	}
+
+	/**
+	 * Atomically update the first document that matches a query, and get it back as it is after the update. This is
+	 * a read-modify-write in a single round trip, ie. a counter:
+	 *
+	 * <pre>
+	 * Query q = new Query("Counter").addFilter("name", FilterOperator.EQUAL, "orders").addIncrement("value", 1).setUpsert(true);
+	 * long next = db.findOneAndUpdate(q).getLongValue("value");
+	 * </pre>
+	 *
+	 * The sorts pick which document is updated when several match. Projections limit what comes back.
+	 * @param q - the query, with at least one update
+	 * @return the updated entity, or null if nothing matched and the query doesn't upsert
+	 */
+	public <T extends Entity> T findOneAndUpdate(Query q) {
+		if(q.updates.isEmpty())
+			throw new IllegalArgumentException("findOneAndUpdate needs at least one update");
+
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+		Bson update = BsonService.generateUpdates(q.updates, this::parseValue);
+
+		FindOneAndUpdateOptions options = new FindOneAndUpdateOptions()
+				.upsert(q.isUpsert())
+				.returnDocument(ReturnDocument.AFTER)
+				.sort(BsonService.generateSorts(q.sorts));
+
+		if(false == q.projections.isEmpty())
+			options.projection(BsonService.generateProjections(q.projections));
+
+		MongoCollection<Document> col = getCollection(q.getType());
+		ClientSession s = currentSession();
+
+		Document doc = s == null ? col.findOneAndUpdate(filter, update, options) : col.findOneAndUpdate(s, filter, update, options);
+
+		if(doc == null)
+			return null;
 
-		db.getCollection(q.getType()).updateMany(session, filters, updates);
+		//anything we hold of this document is stale now, so the fresh copy has to win
+		onKeyModified(new Key(q.getType(), doc.getObjectId("_id")));
+
+		return buildFetchedEntity(q.getType(), doc, q.projections.isEmpty() ? null : q.projections);
 	}
 	public Long runCount(Query q) {
-		Bson filters = BsonService.generateCompositeFilter(q.filters);
+		Bson filters = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+
+		return count(getCollection(q.getType()), filters);
+	}
+
+	/**
+	 * Run a group by on the server. Only the groups come back, not the documents they were computed from.
+	 * @param a
+	 * @return one result per group
+	 */
+	public List<AggregateResult> runAggregation(Aggregation a) {
+		List<Bson> pipeline = BsonService.generatePipeline(a, this::parseValue);
+		MongoCollection<Document> col = db.getCollection(a.getType());
+		ClientSession s = currentSession();
+
+		AggregateIterable<Document> aggregate = s == null ? col.aggregate(pipeline) : col.aggregate(s, pipeline);
+
+		List<AggregateResult> result = new ArrayList<>();
+		for(Document doc : aggregate.allowDiskUse(a.isAllowDiskUse()))
+			result.add(new AggregateResult(a, doc));
+
+		return result;
+	}
+
+	/**
+	 * @param q - which documents to look at. Only the filters are used.
+	 * @param field - the field, dotted paths are allowed
+	 * @param clazz - the type of the values. Use Object if it is mixed
+	 * @return every distinct value of the field among the matching documents. Arrays are unwound.
+	 */
+	public <V> List<V> distinct(Query q, String field, Class<V> clazz) {
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+		MongoCollection<Document> col = db.getCollection(q.getType());
+		ClientSession s = currentSession();
+
+		DistinctIterable<V> distinct = s == null ? col.distinct(field, filter, clazz) : col.distinct(s, field, filter, clazz);
+
+		return distinct.into(new ArrayList<>());
+	}
+
+	/**
+	 * The entities with the highest values of a field. The sort and limit run on the server, so add projections to
+	 * the query to keep the results light.
+	 * @param q - the query. Its own sorts and limit are ignored.
+	 * @param field - the field to rank by. It should be indexed.
+	 * @param n - how many entities
+	 * @return the entities, highest first
+	 */
+	public <T extends Entity> List<T> top(Query q, String field, int n) {
+		Bson filter = BsonService.generateCompositeFilter(q.filters, this::parseValue);
+
+		FindIterable<Document> find = findInternal(q.getType(), filter, BsonService.generateProjections(q.projections),
+				Sorts.descending(field), q.getSkip(), n, q.getBatchSize());
+
+		return buildAll(q.getType(), find, q.projections);
+	}
+
+	/**
+	 * Compile a query into a reusable plan. See {@link PreparedQuery}
+	 * @param q - the query. Values can be {@link QueryParam}s, to be bound on every run.
+	 * @return the plan
+	 */
+	public PreparedQuery prepare(Query q) {
+		return new PreparedQuery(this, q);
+	}
+
+	/**
+	 * Delete every document of a type that matches a filter.
+	 * @param type
+	 * @param filter - the composed bson filter
+	 */
+	protected void deleteManyInternal(String type, Bson filter) {
+		MongoCollection<Document> col = getCollection(type);
+		ClientSession s = currentSession();
+
+		if(s == null)
+			col.deleteMany(filter);
+		else
+			col.deleteMany(s, filter);
+
+		onTypeModified(type);
+	}
+
+	/**
+	 * Update every document of a type that matches a filter.
+	 * @param type
+	 * @param filter - the composed bson filter
+	 * @param update - the composed bson update
+	 * @param upsert - insert a document if nothing matches
+	 */
+	protected void updateManyInternal(String type, Bson filter, Bson update, boolean upsert) {
+		MongoCollection<Document> col = getCollection(type);
+		ClientSession s = currentSession();
+		UpdateOptions options = new UpdateOptions().upsert(upsert);
+
+		if(s == null)
+			col.updateMany(filter, update, options);
+		else
+			col.updateMany(s, filter, update, options);
+
+		//whatever we have loaded of this type may now be stale
+		onTypeModified(type);
+	}
+
+	/**
+	 * A countDocuments, through the current transaction if there is one.
+	 */
+	protected long count(MongoCollection<Document> col, Bson filter) {
+		ClientSession s = currentSession();
 
-		return db.getCollection(q.getType()).countDocuments(session, filters);
+		return s == null ? col.countDocuments(filter) : col.countDocuments(s, filter);
 	}
 
 
@@ -515,7 +2257,7 @@ public class DBService{
 	 * @param ents
 	 * @return
 	 */
-	private <T extends Entity> Map<String, List<T>> sortEntitiesByType(Iterable<T> ents){
+	protected <T extends Entity> Map<String, List<T>> sortEntitiesByType(Iterable<T> ents){
 		Map<String, List<T>> result = new HashMap<>();
 		
 		for(T ent : ents) {
@@ -537,7 +2279,7 @@ public class DBService{
 	 * @param keys
 	 * @return
 	 */
-	private Map<String, List<Key>> sortKeysByType(Iterable<Key> keys){
+	protected Map<String, List<Key>> sortKeysByType(Iterable<Key> keys){
 		Map<String, List<Key>> result = new HashMap<>();
 		
 		for(Key key : keys) {
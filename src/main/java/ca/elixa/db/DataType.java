@@ -5,7 +5,8 @@ public enum DataType {
 
     Number, Decimal,
 
-    Key, KeyList,
+    Key,
+    KeyList, //read as a KeyList, see Entity.getKeyListValue
 
     //Maps
     StringKeyMap,
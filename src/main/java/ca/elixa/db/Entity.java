@@ -21,10 +21,21 @@ import io.vertx.core.json.JsonObject;
  *
  */
 public abstract class Entity implements Cloneable {
+	/**
+	 * Where the version of an entity is stored, for types with optimistic locking. See DBService.enableOptimisticLocking
+	 */
+	public static final String VERSION_FIELD = "_v";
+
 	protected DBService db;
 	protected Document raw;
 	private Key key;
 	private Set<String> projections; //This can be null
+	private final Set<String> dirty = new HashSet<>(); //top level fields changed since this was loaded or saved
+	private Map<Key, Entity> references = null; //prefetched referenced entities, see DBService.prefetch. Values can be null
+	private Map<String, Pair<UpdateOperator, Object>> pendingOps = null; //atomic updates for the next partial save, see increment
+	private Map<String, KeyList> keyLists = null; //handed out by getKeyListValue, and written back to raw lazily
+	private Entity source = null; //the entity this is a write snapshot of, see detachWrite
+	private Map<String, Object> exposed = null; //copies of the lists and documents handed out, to catch in-place changes
 	
 	private Boolean isNew;
 
@@ -44,14 +55,10 @@ public abstract class Entity implements Cloneable {
 		
 		this.projections = projections;
 
-		//if the entity is phresh, we need to generate a key for it
-		if(isNew) {
-			this.key = db.generateKey(getType());
-			raw.put("_id", new ObjectId(key.getId()));
-		}
+		//if the entity is phresh, its key is generated the first time someone asks for it. See getKey
 		//otherwise, create the key out of the type and ID.
-		else {
-			this.key = new Key(getType(), raw.getObjectId("_id").toHexString());
+		if(false == isNew) {
+			this.key = new Key(getType(), raw.getObjectId("_id"));
 		}
 	}
 	
@@ -66,32 +73,406 @@ public abstract class Entity implements Cloneable {
 		return isNew;
 	}
 	
+	/**
+	 * Record that a top level field changed, so that it is included in the next partial save.
+	 * Setters do this already, and values read through the getters are checked for in-place changes on save. This is
+	 * only needed after mutating a value reached some other way, ie. through iterateOverAllProperties.
+	 * @param key - the field that changed
+	 */
+	protected void markDirty(String key) {
+		//a lazily decoded document becomes a plain one once it's written to
+		if(raw instanceof LazyDocument lazy)
+			lazy.materialize();
+
+		dirty.add(key);
+
+		//the whole value is written now, which already carries any atomic update
+		if(pendingOps != null)
+			pendingOps.remove(key);
+
+		//and whatever KeyList was handed out for it no longer reflects it
+		if(keyLists != null)
+			keyLists.remove(key);
+
+		//the field is written whole, so there is nothing left to compare
+		if(exposed != null)
+			exposed.remove(key);
+	}
+
+	/**
+	 * Remember a copy of a list or document we're handing out, so that changes made to it in place are still saved.
+	 * See detectInPlaceChanges
+	 */
+	private void expose(String key, Object value) {
+		if(false == (value instanceof List || value instanceof Document) || dirty.contains(key))
+			return;
+
+		if(exposed == null)
+			exposed = new HashMap<>();
+
+		if(false == exposed.containsKey(key))
+			exposed.put(key, BsonService.copyValue(value));
+	}
+
+	/**
+	 * Mark dirty every field whose list or document was changed in place since it was handed out, by comparing it
+	 * with the copy taken then.
+	 */
+	protected void detectInPlaceChanges() {
+		if(exposed == null || exposed.isEmpty())
+			return;
+
+		List<String> changed = new ArrayList<>();
+
+		for(Map.Entry<String, Object> entry : exposed.entrySet()) {
+			if(false == Objects.equals(raw.get(entry.getKey()), entry.getValue()))
+				changed.add(entry.getKey());
+		}
+
+		for(String key : changed)
+			markDirty(key);
+	}
+
+	/**
+	 * Stop comparing a field whose value is about to be swapped for a new one, which the value handed out no longer
+	 * reaches. A change already made to it in place is kept by marking the field dirty.
+	 */
+	private void releaseExposed(String key) {
+		if(exposed == null || false == exposed.containsKey(key))
+			return;
+
+		if(Objects.equals(raw.get(key), exposed.get(key)))
+			exposed.remove(key);
+		else
+			markDirty(key);
+	}
+
+	/**
+	 * Take fresh copies of the values a caller may still hold on to, once their current state is being written:
+	 * everything handed out so far, and lists and documents that were just set.
+	 * @param written - the fields being written
+	 */
+	private void resetExposed(Set<String> written) {
+		Set<String> fields = new HashSet<>(written);
+
+		if(exposed != null)
+			fields.addAll(exposed.keySet());
+
+		exposed = null;
+
+		for(String field : fields)
+			expose(field, raw.get(field));
+	}
+
+	/**
+	 * @return true if any field changed since this was loaded or last saved
+	 */
+	public boolean isDirty() {
+		detectInPlaceChanges();
+
+		return false == dirty.isEmpty() || (pendingOps != null && false == pendingOps.isEmpty());
+	}
+
+	/**
+	 * @return field -> the atomic update the next partial save sends for it. These never overlap with the dirty fields.
+	 */
+	protected Map<String, Pair<UpdateOperator, Object>> getPendingUpdates() {
+		return pendingOps == null ? Collections.emptyMap() : Collections.unmodifiableMap(pendingOps);
+	}
+
+	/**
+	 * @return every field the next save writes, whether it's set or atomically updated
+	 */
+	protected Set<String> getUnsavedFields() {
+		if(pendingOps == null || pendingOps.isEmpty())
+			return getDirtyFields();
+
+		Set<String> result = new HashSet<>(dirty);
+		result.addAll(pendingOps.keySet());
+
+		return result;
+	}
+
+	/**
+	 * @return the top level fields changed since this was loaded or last saved
+	 */
+	public Set<String> getDirtyFields() {
+		return Collections.unmodifiableSet(dirty);
+	}
+
+	/**
+	 * Fold the unsaved changes of an older object for the same document into this one, so that saving this entity
+	 * writes both. Fields changed on this entity win.
+	 * @param earlier - an unsaved entity with the same key
+	 */
+	protected void absorbPendingWrites(Entity earlier) {
+		flushKeyLists();
+		earlier.flushKeyLists();
+
+		if(earlier.isNew)
+			isNew = true;
+
+		//the two go out as one write, which has to expect the version the earlier one did
+		if(earlier.raw.containsKey(VERSION_FIELD))
+			raw.put(VERSION_FIELD, earlier.raw.get(VERSION_FIELD));
+		else
+			raw.remove(VERSION_FIELD);
+
+		for(String field : earlier.dirty) {
+			if(dirty.contains(field))
+				continue;
+
+			if(keyLists != null)
+				keyLists.remove(field);
+
+			if(earlier.raw.containsKey(field))
+				raw.put(field, earlier.raw.get(field));
+			else
+				raw.remove(field);
+
+			//an atomic update made here happened after the earlier write, so it is replayed on top of it
+			Pair<UpdateOperator, Object> op = pendingOps == null ? null : pendingOps.remove(field);
+			if(op != null)
+				applyLocally(field, op.getKey(), op.getValue());
+
+			dirty.add(field);
+		}
+
+		if(earlier.pendingOps == null)
+			return;
+
+		for(Entry<String, Pair<UpdateOperator, Object>> entry : earlier.pendingOps.entrySet()) {
+			String field = entry.getKey();
+
+			if(dirty.contains(field))
+				continue;
+
+			Pair<UpdateOperator, Object> later = pendingOps == null ? null : pendingOps.get(field);
+
+			if(keyLists != null)
+				keyLists.remove(field);
+
+			raw.put(field, earlier.raw.get(field));
+
+			if(later == null) {
+				if(pendingOps == null)
+					pendingOps = new HashMap<>();
+
+				pendingOps.put(field, entry.getValue());
+				continue;
+			}
+
+			applyLocally(field, later.getKey(), later.getValue());
+
+			Pair<UpdateOperator, Object> combined = combineOps(entry.getValue(), later);
+			if(combined == null)
+				markDirty(field);
+			else
+				pendingOps.put(field, combined);
+		}
+	}
+
+	/**
+	 * Move the unsaved changes of this entity onto a detached copy, for a write that runs on another thread. The copy
+	 * holds its own snapshot of the document, so nothing done to this entity afterwards reaches the write; and this
+	 * entity carries on as if the write was already sent, so changes made from now on are left for the next one.
+	 * See WriteBehindBuffer
+	 * @param versioned - whether the type uses optimistic locking, in which case this moves on to the version the
+	 *                    write stores
+	 * @return the copy to write
+	 */
+	protected Entity detachWrite(boolean versioned) {
+		//a fresh entity's _id has to be in the snapshot
+		getKey();
+		flushKeyLists();
+		detectInPlaceChanges();
+
+		Entity copy = instantiate();
+		copy.init(db, BsonService.copyDocument(raw), isNew, projections == null ? null : new HashSet<>(projections));
+		copy.key = key;
+		copy.source = this;
+		copy.dirty.addAll(dirty);
+		copy.pendingOps = pendingOps;
+
+		if(versioned)
+			setVersion(isNew ? 1 : getVersion() + 1);
+
+		isNew = false;
+		Set<String> written = new HashSet<>(dirty);
+		dirty.clear();
+		pendingOps = null;
+		resetExposed(written);
+
+		return copy;
+	}
+
+	/**
+	 * @return the entity this is a write snapshot of, or itself. See detachWrite
+	 */
+	protected Entity getSource() {
+		return source == null ? this : source;
+	}
+
+	/**
+	 * Called by the DBService once this entity has been written.
+	 */
+	protected void markSaved() {
+		isNew = false;
+		Set<String> written = new HashSet<>(dirty);
+		dirty.clear();
+		pendingOps = null;
+		resetExposed(written);
+	}
+
+	/**
+	 * Undo markSaved, when the write it recorded was rolled back. Atomic updates come back as plain dirty fields,
+	 * since we already hold their result.
+	 * @param wasNew - whether the entity was new before it was saved
+	 * @param fields - the fields that were unsaved before it was saved, see getUnsavedFields
+	 */
+	protected void markUnsaved(boolean wasNew, Set<String> fields) {
+		if(wasNew)
+			isNew = true;
+
+		dirty.addAll(fields);
+	}
+
+	/**
+	 * @return the version this entity was loaded or last saved at. 0 if it was never saved with optimistic locking.
+	 */
+	public long getVersion() {
+		Object version = raw.get(VERSION_FIELD);
+
+		return version instanceof Number n ? n.longValue() : 0L;
+	}
+
+	/**
+	 * Called by the DBService; the version is never dirty, it is written along with every save.
+	 */
+	protected void setVersion(long version) {
+		raw.put(VERSION_FIELD, version);
+	}
+
 	public boolean projected() {
 		return projections != null && false == projections.isEmpty();
 	}
 	
 	/**
-	 * This will return null if no projections were set. or at least it should....
+	 * This will return null if no projections were set, or once the rest of the fields have been loaded.
 	 * @return
 	 */
 	public Set<String> getProjections(){
 		return projections;
 	}
+
+	/**
+	 * Projected entities only hold some of their fields. Reading a field outside of the projection loads every
+	 * field we don't have yet, in a single fetch, after which this is a regular entity.
+	 * @param key - the field about to be read
+	 */
+	private void ensureLoaded(String key) {
+		if(keyLists != null)
+			flushKeyList(key);
+
+		//the version is always fetched along with a projection
+		if(false == projected() || projections.contains(key) || dirty.contains(key) || key.equals("_id") || key.equals(VERSION_FIELD))
+			return;
+
+		db.loadRemainingFields(this);
+	}
+
+	private void ensureFullyLoaded() {
+		flushKeyLists();
+
+		if(projected())
+			db.loadRemainingFields(this);
+	}
+
+	/**
+	 * Fill in the fields a projected entity is missing, keeping anything we already hold or have changed.
+	 * @param full - the whole stored document
+	 */
+	protected void mergeRemainingFields(Document full) {
+		for(Entry<String, Object> entry : full.entrySet()) {
+			//keeping the version we loaded makes sure a concurrent save in between still conflicts
+			if(projections.contains(entry.getKey()) || dirty.contains(entry.getKey()) || entry.getKey().equals(VERSION_FIELD))
+				continue;
+
+			raw.put(entry.getKey(), entry.getValue());
+		}
+
+		projections = null;
+	}
 	
 	public String getName() {
+		ensureLoaded("name");
 		return raw.getString("name");
 	}
 
 	/**
-	 * Given a List of Keys on an entity, fetch those entities.
+	 * Given a List of Keys on an entity, fetch those entities. Anything prefetched is not fetched again; everything
+	 * else is fetched on every call, so it is never staler than the identity map and cache make it.
 	 * @param key
-	 * @return
+	 * @return the entities that exist, in the order of the list
 	 * @param <T>
 	 */
 	public <T extends Entity> List<T> getReferencedEntityList(String key){
 		List<Key> keys = getKeyList(key);
 
-		return db.getEntities(keys);
+		List<Key> missing = new ArrayList<>();
+		for(Key k : keys) {
+			if(references == null || false == references.containsKey(k))
+				missing.add(k);
+		}
+
+		Map<Key, Entity> fetched = new HashMap<>();
+
+		if(missing.size() > 0) {
+			for(Entity ent : db.getEntities(missing))
+				fetched.put(ent.getKey(), ent);
+		}
+
+		List<T> result = new ArrayList<>();
+		for(Key k : keys) {
+			@SuppressWarnings("unchecked")
+			T ent = (T) (references != null && references.containsKey(k) ? references.get(k) : fetched.get(k));
+
+			if(ent != null)
+				result.add(ent);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param key - a key or key list property
+	 * @return every key the property references. Can be empty.
+	 */
+	protected List<Key> getReferencedKeys(String key){
+		Object value = getValue(key);
+
+		if(value instanceof List)
+			return getKeyList(key);
+
+		List<Key> result = new ArrayList<>();
+
+		if(value instanceof Document || value instanceof Binary)
+			result.add(getKeyValue(key));
+
+		return result;
+	}
+
+	/**
+	 * Hold on to a referenced entity, so that resolving its key later costs no I/O. Only DBService.prefetch attaches
+	 * references; the caller asked for them to be resolved once, up front.
+	 * @param key - the referenced key
+	 * @param ent - the entity, or null if it doesn't exist
+	 */
+	protected void attachReference(Key key, Entity ent){
+		if(references == null)
+			references = new HashMap<>();
+
+		references.put(key, ent);
 	}
 
 	/**
@@ -100,16 +481,21 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	public List<Key> getKeyList(String key){
-		List<Document> documents = getListValue(key, Document.class);
+		KeyList live = keyLists == null ? null : keyLists.get(key);
+		if(live != null)
+			return live.toList();
 
-		if(documents == null || documents.size() == 0){
+		ensureLoaded(key);
+		List<Object> stored = raw.getList(key, Object.class);
+
+		if(stored == null || stored.size() == 0){
 			return new ArrayList<>();
 		}
 
 		List<Key> results = new ArrayList<>();
 
-		for(Document doc : documents)
-			results.add(db.getKeyFromDoc(doc));
+		for(Object value : stored)
+			results.add(Key.fromStoredValue(value));
 
 		return results;
 	}
@@ -118,11 +504,131 @@ public abstract class Entity implements Cloneable {
 		addKeyToList(targetKey, toAdd.getKey());
 	}
 
-	public void addKeyToList(String targetKey, Key toAdd){
-		List<Key> current = getKeyList(targetKey);
-		current.add(toAdd);
+	/**
+	 * Get a list of keys as a {@link KeyList}, for lists too big to read as a List of Keys. The KeyList is live:
+	 * changes made to it are saved with this entity, as an $addToSet or $pull when that's all they were. It stops
+	 * being tracked once the property is set some other way.
+	 *
+	 * The stored list is read as a set, so duplicates are dropped.
+	 * @param key - a key list property
+	 * @return the keys. Never null
+	 */
+	public KeyList getKeyListValue(String key){
+		KeyList result = keyLists == null ? null : keyLists.get(key);
 
-		setValue(targetKey, current);
+		if(result != null)
+			return result;
+
+		ensureLoaded(key);
+		result = KeyList.fromStoredValue(raw.getList(key, Object.class));
+
+		if(keyLists == null)
+			keyLists = new HashMap<>();
+
+		keyLists.put(key, result);
+
+		return result;
+	}
+
+	/**
+	 * Write back every KeyList that changed. The DBService calls this before saving.
+	 */
+	protected void flushKeyLists() {
+		if(keyLists == null)
+			return;
+
+		for(String key : keyLists.keySet())
+			flushKeyList(key);
+	}
+
+	private void flushKeyList(String key) {
+		KeyList list = keyLists.get(key);
+
+		if(list == null || list.getChange() == KeyList.Change.NONE)
+			return;
+
+		if(raw instanceof LazyDocument lazy)
+			lazy.materialize();
+
+		raw.put(key, list.toStoredValue(db.isCompactKeyStorage()));
+
+		//the list handed out for it is no longer the stored one
+		if(exposed != null)
+			exposed.remove(key);
+
+		Pair<UpdateOperator, Object> op = null;
+
+		//a fresh entity is inserted whole, and a field that's already being set carries the change along
+		if(false == isNew && false == dirty.contains(key) && list.getChange() != KeyList.Change.REWRITTEN) {
+			List<Object> elements = new ArrayList<>();
+
+			for(Key changed : list.getChangedKeys()) {
+				//removes match either stored form, so older entries go too
+				if(list.getChange() == KeyList.Change.REMOVED) {
+					elements.add(changed.toDocument());
+					elements.add(Key.toCompactValue(changed.getType(), changed.getIdHigh(), changed.getIdLow()));
+				}
+				else
+					elements.add(changed.toStoredValue(db.isCompactKeyStorage()));
+			}
+
+			op = new Pair<>(list.getChange() == KeyList.Change.ADDED ? UpdateOperator.ADD_TO_SET : UpdateOperator.PULL, elements);
+
+			Pair<UpdateOperator, Object> earlier = pendingOps == null ? null : pendingOps.get(key);
+			if(earlier != null)
+				op = combineOps(earlier, op);
+		}
+
+		if(op == null) {
+			dirty.add(key);
+
+			if(pendingOps != null)
+				pendingOps.remove(key);
+		}
+		else {
+			if(pendingOps == null)
+				pendingOps = new HashMap<>();
+
+			pendingOps.put(key, op);
+		}
+
+		list.markSynced();
+	}
+
+	/**
+	 * Read a property as the given data type.
+	 * @param key - the property
+	 * @param type - how it is stored
+	 * @return the value, in the type the matching getter returns. Types without a dedicated getter return the raw value
+	 */
+	public Object getTypedValue(String key, DataType type){
+		switch(type) {
+			case String:
+				return getStringValue(key);
+			case Decimal:
+				return getDoubleValue(key);
+			case Key:
+				return getKeyValue(key);
+			case KeyList:
+				return getKeyListValue(key);
+			case StringKeyMap:
+				return getStringKeyMapValue(key);
+			case StringStringMap:
+				return getStringStringMapValue(key);
+			case StringDecimalMap:
+				return getStringDoubleMapValue(key);
+			default:
+				return getValue(key);
+		}
+	}
+
+	/**
+	 * Append a key to a list of keys. On a partial save this becomes a $push, so concurrent appends aren't lost.
+	 * @param targetKey
+	 * @param toAdd
+	 */
+	public void addKeyToList(String targetKey, Key toAdd){
+		pushValue(targetKey, toAdd);
 	}
 
 	/**
@@ -133,16 +639,23 @@ public abstract class Entity implements Cloneable {
 	 * @param <T> - the type of list
 	 */
 	protected <T> List<T> getListValue(String key, Class<T> type){
-		return raw.getList(key, type);
+		ensureLoaded(key);
+		List<T> result = raw.getList(key, type);
+		expose(key, result);
+		return result;
 	}
 	
 	public Object getValue(String key) {
-		return raw.get(key);
+		ensureLoaded(key);
+		Object result = raw.get(key);
+		expose(key, result);
+		return result;
 	}
 	public String getStringValue(String key){
 		return (String) getValue(key);
 	}
 	protected Date getDateValue(String key){
+		ensureLoaded(key);
 		return raw.getDate(key);
 	}
 
@@ -152,6 +665,7 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	protected Long getLongValue(String key){
+		ensureLoaded(key);
 		Long result = raw.getLong(key);
 		if(result == null)
 			result = 0L;
@@ -165,6 +679,7 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	protected Double getDoubleValue(String key){
+		ensureLoaded(key);
 		Double d = raw.getDouble(key);
 		if(d == null)
 			return 0d;
@@ -172,6 +687,7 @@ public abstract class Entity implements Cloneable {
 	}
 
 	protected Boolean getBooleanValue(String key){
+		ensureLoaded(key);
 		return raw.getBoolean(key);
 	}
 
@@ -200,7 +716,7 @@ public abstract class Entity implements Cloneable {
 		Map<String, Key> result = new HashMap<>();
 
 		for(var entry : raw.entrySet())
-			result.put(entry.getKey(), db.getKeyFromDoc((Document) entry.getValue()));
+			result.put(entry.getKey(), Key.fromStoredValue(entry.getValue()));
 
 		return result;
 	}
@@ -211,6 +727,7 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	protected Map<String, String> getStringStringMapValue(String key){
+		ensureLoaded(key);
 		Document doc = raw.get(key, Document.class);
 
 		Map<String, String> result = new HashMap<>();
@@ -225,6 +742,7 @@ public abstract class Entity implements Cloneable {
 	}
 
 	protected Map<String, Double> getStringDoubleMapValue(String key){
+		ensureLoaded(key);
 		Document doc = raw.get(key, Document.class);
 
 		Map<String, Double> result = new HashMap<>();
@@ -274,7 +792,10 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	private Document getEmbedded(String key){
-		return raw.get(key, Document.class);
+		ensureLoaded(key);
+		Document result = raw.get(key, Document.class);
+		expose(key, result);
+		return result;
 	}
 
 	/**
@@ -288,6 +809,7 @@ public abstract class Entity implements Cloneable {
 		d.putAll(map);
 
 		raw.put(key, d);
+		markDirty(key);
 	}
 
 	/**
@@ -317,12 +839,16 @@ public abstract class Entity implements Cloneable {
 	 * @return the entity
 	 * @param <T> - the resulting entity type
 	 */
+	@SuppressWarnings("unchecked")
 	protected <T extends Entity> T getEntityFromKeyValue(String key){
 		Key k = getKeyValue(key);
 
 		if(k == null)
 			return null;
 
+		if(references != null && references.containsKey(k))
+			return (T) references.get(k);
+
 		return db.getEntity(k);
 	}
 
@@ -332,7 +858,195 @@ public abstract class Entity implements Cloneable {
 	 * @param value - the new value
 	 */
 	public void setValue(String key, Object value) {
-		raw.put(key, BsonService.parseValue(value));
+		raw.put(key, db.parseValue(value));
+		markDirty(key);
+	}
+
+	/**
+	 * Add to a number. On a partial save this becomes an $inc, applied by the server on top of whatever is stored
+	 * then, so concurrent increments are never lost. Our own copy is updated right away.
+	 *
+	 * Atomic updates are sent as such in either {@link SaveMode}. In REPLACE, an entity holding one is saved as an
+	 * update that sets every other field, rather than as a replace.
+	 * @param key - the property, a missing one counts as 0
+	 * @param amount - how much to add, can be negative
+	 */
+	public void increment(String key, Number amount) {
+		recordOp(key, UpdateOperator.INC, amount);
+	}
+
+	/**
+	 * Append to a list. On a partial save this becomes a $push. See increment
+	 * @param key - the property
+	 * @param value - the element. A collection appends each of its elements
+	 */
+	public void pushValue(String key, Object value) {
+		recordOp(key, UpdateOperator.PUSH, toElements(key, UpdateOperator.PUSH, value));
+	}
+
+	/**
+	 * Append to a list unless it's already in there. On a partial save this becomes an $addToSet. See increment
+	 *
+	 * A key is matched in either stored form, see DBService.setCompactKeyStorage. The server only compares against
+	 * the form it's sent in, so a key we hold in the other form is left out here; one added by someone else since we
+	 * loaded the list can still end up in there twice.
+	 * @param key - the property
+	 * @param value - the element. A collection adds each of its elements
+	 */
+	public void addToSetValue(String key, Object value) {
+		List<Object> elements = toElements(key, UpdateOperator.ADD_TO_SET, value);
+
+		if(false == elements.isEmpty())
+			recordOp(key, UpdateOperator.ADD_TO_SET, elements);
+	}
+
+	/**
+	 * Remove every copy of a value from a list. On a partial save this becomes a $pull. See increment
+	 *
+	 * A key is removed in either stored form, see DBService.setCompactKeyStorage.
+	 * @param key - the property
+	 * @param value - the element. A collection removes each of its elements
+	 */
+	public void pullValue(String key, Object value) {
+		recordOp(key, UpdateOperator.PULL, toElements(key, UpdateOperator.PULL, value));
+	}
+
+	/**
+	 * @return the values as they are sent with the op. Keys are pulled in both of their stored forms, and only added
+	 * to a set if neither form is in the list already
+	 */
+	private List<Object> toElements(String key, UpdateOperator op, Object value) {
+		Collection<?> values = value instanceof Collection<?> c ? c : Collections.singletonList(value);
+		List<Object> result = new ArrayList<>();
+
+		for(Object o : values) {
+			if(op != UpdateOperator.PUSH && o instanceof Key k && k.hasObjectId()) {
+				Document document = k.toDocument();
+				Binary compact = Key.toCompactValue(k.getType(), k.getIdHigh(), k.getIdLow());
+
+				if(op == UpdateOperator.PULL) {
+					result.add(document);
+					result.add(compact);
+					continue;
+				}
+
+				ensureLoaded(key);
+
+				if(raw.get(key) instanceof List<?> list && (list.contains(document) || list.contains(compact)))
+					continue;
+			}
+
+			result.add(db.parseValue(o));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Apply an atomic update to our copy, and remember it for the next partial save.
+	 */
+	private void recordOp(String key, UpdateOperator op, Object value) {
+		ensureLoaded(key);
+
+		//the KeyList was just written back, and won't see this change
+		if(keyLists != null)
+			keyLists.remove(key);
+
+		if(raw instanceof LazyDocument lazy)
+			lazy.materialize();
+
+		releaseExposed(key);
+		applyLocally(key, op, value);
+
+		//a fresh entity is inserted whole, and a field that's already being set carries the change along
+		if(isNew || dirty.contains(key)) {
+			markDirty(key);
+			return;
+		}
+
+		if(pendingOps == null)
+			pendingOps = new HashMap<>();
+
+		Pair<UpdateOperator, Object> earlier = pendingOps.get(key);
+		Pair<UpdateOperator, Object> next = new Pair<>(op, value);
+
+		if(earlier != null)
+			next = combineOps(earlier, next);
+
+		//two different operators can't touch one field in a single update, so we fall back to setting it
+		if(next == null)
+			markDirty(key);
+		else
+			pendingOps.put(key, next);
+	}
+
+	/**
+	 * @return one update that does both, or null if there isn't one
+	 */
+	private static Pair<UpdateOperator, Object> combineOps(Pair<UpdateOperator, Object> first, Pair<UpdateOperator, Object> second) {
+		if(first.getKey() != second.getKey())
+			return null;
+
+		switch(first.getKey()) {
+			case INC:
+				return new Pair<>(UpdateOperator.INC, addNumbers((Number) first.getValue(), (Number) second.getValue()));
+			case PUSH:
+			case ADD_TO_SET:
+			case PULL: {
+				List<Object> elements = new ArrayList<>((List<?>) first.getValue());
+				elements.addAll((List<?>) second.getValue());
+
+				return new Pair<>(first.getKey(), elements);
+			}
+			default:
+				return null;
+		}
+	}
+
+	private void applyLocally(String key, UpdateOperator op, Object value) {
+		Object current = raw.get(key);
+
+		if(op == UpdateOperator.INC) {
+			raw.put(key, addNumbers(current == null ? 0 : (Number) current, (Number) value));
+			return;
+		}
+
+		List<Object> list = current == null ? new ArrayList<>() : new ArrayList<>((List<?>) current);
+
+		for(Object element : (List<?>) value) {
+			if(op == UpdateOperator.PUSH)
+				list.add(element);
+			else if(op == UpdateOperator.ADD_TO_SET && false == list.contains(element))
+				list.add(element);
+			else if(op == UpdateOperator.PULL)
+				list.removeIf(element::equals);
+		}
+
+		raw.put(key, list);
+	}
+
+	/**
+	 * Add two numbers the way the server's $inc does: doubles win, and ints widen to longs rather than overflow.
+	 */
+	private static Number addNumbers(Number a, Number b) {
+		if(a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+			return a.doubleValue() + b.doubleValue();
+
+		long sum = a.longValue() + b.longValue();
+
+		if(a instanceof Integer && b instanceof Integer && sum == (int) sum)
+			return (int) sum;
+
+		return sum;
+	}
+
+	/**
+	 * Remove a value from this entity. On a partial save, this becomes an $unset.
+	 * @param key - the property we are removing
+	 */
+	public void removeValue(String key) {
+		raw.remove(key);
+		markDirty(key);
 	}
 
 	/**
@@ -345,12 +1059,8 @@ public abstract class Entity implements Cloneable {
 	}
 	
 	protected Key getKeyValue(String property) {
-		Document rawKey = (Document) getValue(property);
-
-		if(rawKey == null)
-			return null;
-		
-		return new Key(rawKey);
+		//keys are read in either stored form, see DBService.setCompactKeyStorage
+		return Key.fromStoredValue(getValue(property));
 	}
 	
 	/**
@@ -361,13 +1071,20 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	public boolean hasValue(String key) {
+		ensureLoaded(key);
 		return raw.containsKey(key);
 	}
 
 	/**
+	 * Fresh entities don't get a key until this is first called (or they are saved), so creating them costs no I/O.
 	 * @return the key associated with this entity.
 	 */
 	public Key getKey() {
+		if(key == null) {
+			key = db.generateKey(getType());
+			raw.put("_id", key.toObjectId());
+		}
+
 		return key;
 	}
 
@@ -391,6 +1108,7 @@ public abstract class Entity implements Cloneable {
 	 * INSTEAD, allow them to iterate over an unmodifiable version of the document
 	 */
 	public void iterateOverAllProperties(Consumer<? super Entry<String, Object>> transformation){
+		ensureFullyLoaded();
 		Collections.unmodifiableCollection(raw.entrySet()).forEach(transformation);
 	}
 
@@ -418,6 +1136,7 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	public JsonObject toJson() {
+		ensureFullyLoaded();
 		JsonObject result = new JsonObject();
 		
 		for(Entry<String, Object> entry : raw.entrySet())
@@ -0,0 +1,321 @@
+package ca.elixa.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+
+/**
+ * A process wide cache of entity documents, sitting in front of {@link DBService#getEntity(Key)} and
+ * {@link DBService#getEntities(Iterable)}. Only types that have been configured are cached.
+ *
+ * One instance is meant to be shared by every DBService in the process, see {@link DBService#setEntityCache(EntityCache)}.
+ * Writes through a DBService refresh or invalidate the affected keys; writes made any other way are only picked up
+ * once the entry expires, so give types that are written elsewhere a ttl.
+ *
+ * Documents are copied on the way in and on the way out, so entities never share state with the cache.
+ *
+ * @author Evan
+ *
+ */
+public class EntityCache {
+	private final Map<String, Region> regions = new ConcurrentHashMap<>();
+
+	//ticks on every write or invalidation, see stamp
+	private final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * Start caching a type. Reconfiguring a type drops whatever was cached for it.
+	 * @param type - the entity type
+	 * @param config - the bounds for this type
+	 * @return itself
+	 */
+	public EntityCache configure(String type, CacheConfig config) {
+		regions.put(type, new Region(config));
+		return this;
+	}
+
+	public boolean isCached(String type) {
+		return regions.containsKey(type);
+	}
+
+	/**
+	 * @param key
+	 * @return a private copy of the cached document, or null on a miss.
+	 */
+	protected Document get(Key key) {
+		Region region = regions.get(key.getType());
+
+		if(region == null)
+			return null;
+
+		Document doc = region.get(key);
+
+		return doc == null ? null : BsonService.copyDocument(doc);
+	}
+
+	/**
+	 * Take this before reading documents to populate the cache with.
+	 * @return the current point in time, as far as the cache is concerned
+	 */
+	protected long stamp() {
+		return clock.get();
+	}
+
+	/**
+	 * Cache a document that was just read. This never replaces an entry, since a concurrent write may have put a
+	 * newer version there while we were reading. If anything of the type was written or invalidated since the read
+	 * began, the document is dropped, since it may be the version that was just invalidated.
+	 * @param key
+	 * @param doc
+	 * @param stamp - from stamp(), taken before the read
+	 */
+	protected void populate(Key key, Document doc, long stamp) {
+		Region region = regions.get(key.getType());
+
+		if(region != null)
+			region.put(key, BsonService.copyDocument(doc), false, stamp);
+	}
+
+	/**
+	 * Cache a document that was just written.
+	 * @param key
+	 * @param doc
+	 */
+	protected void refresh(Key key, Document doc) {
+		Region region = regions.get(key.getType());
+
+		if(region != null) {
+			region.bump(clock.incrementAndGet());
+			region.put(key, BsonService.copyDocument(doc), true, Long.MAX_VALUE);
+		}
+	}
+
+	public void invalidate(Key key) {
+		Region region = regions.get(key.getType());
+
+		//bumped before the removal, so a populate that gets in after it sees the bump
+		if(region != null) {
+			region.bump(clock.incrementAndGet());
+			region.remove(key);
+		}
+	}
+
+	/**
+	 * Drop everything cached for a type.
+	 * @param type
+	 */
+	public void invalidateType(String type) {
+		Region region = regions.get(type);
+
+		if(region != null) {
+			region.bump(clock.incrementAndGet());
+			region.clear();
+		}
+	}
+
+	/**
+	 * @param type
+	 * @return the counters for a type, or null if the type isn't cached.
+	 */
+	public CacheStats getStats(String type) {
+		Region region = regions.get(type);
+
+		return region == null ? null : region.stats();
+	}
+
+	/**
+	 * @return the counters for every cached type
+	 */
+	public Map<String, CacheStats> getStats() {
+		Map<String, CacheStats> result = new HashMap<>();
+
+		for(Map.Entry<String, Region> entry : regions.entrySet())
+			result.put(entry.getKey(), entry.getValue().stats());
+
+		return result;
+	}
+
+	/**
+	 * Everything cached for one type. Keys are spread over a few independently locked LRU segments so readers on
+	 * different threads rarely contend.
+	 */
+	private static class Region {
+		private static final int MAX_SEGMENTS = 16;
+
+		private final Segment[] segments;
+		private final long ttlMillis;
+
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+
+		//the clock at the last write or invalidation of this type. Only ever moves forward, see bump
+		private final AtomicLong generation = new AtomicLong();
+
+		private Region(CacheConfig config) {
+			int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, config.getMaxEntries() / 64));
+
+			segments = new Segment[count];
+			for(int i = 0; i < count; i++)
+				segments[i] = new Segment(
+						Math.max(1, config.getMaxEntries() / count),
+						Math.max(1, config.getMaxWeight() / count));
+
+			ttlMillis = config.getTtl() == null ? 0 : config.getTtl().toMillis();
+		}
+
+		/**
+		 * Record a write or invalidation at the given tick. Two of these can race, and the later tick has to win.
+		 * @param tick
+		 */
+		private void bump(long tick) {
+			generation.accumulateAndGet(tick, Math::max);
+		}
+
+		private Segment segmentFor(Key key) {
+			int hash = key.hashCode();
+			hash ^= (hash >>> 16);
+			return segments[Math.floorMod(hash, segments.length)];
+		}
+
+		private Document get(Key key) {
+			Document doc = segmentFor(key).get(key, System.currentTimeMillis());
+
+			if(doc == null)
+				misses.increment();
+			else
+				hits.increment();
+
+			return doc;
+		}
+
+		/**
+		 * @param stamp - the put is dropped if the type was written or invalidated after this
+		 */
+		private void put(Key key, Document doc, boolean replace, long stamp) {
+			long expiresAt = ttlMillis == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + ttlMillis;
+			long evicted = segmentFor(key).put(this, key, new CacheEntry(doc, BsonService.estimateSize(doc), expiresAt), replace, stamp);
+
+			evictions.add(evicted);
+		}
+
+		private void remove(Key key) {
+			segmentFor(key).remove(key);
+		}
+
+		private void clear() {
+			for(Segment segment : segments)
+				segment.clear();
+		}
+
+		private CacheStats stats() {
+			long size = 0;
+			long weight = 0;
+
+			for(Segment segment : segments) {
+				synchronized(segment) {
+					size += segment.entries.size();
+					weight += segment.weight;
+				}
+			}
+
+			return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size, weight);
+		}
+	}
+
+	/**
+	 * A single LRU, bounded by both entry count and total weight.
+	 */
+	private static class Segment {
+		private final long maxEntries;
+		private final long maxWeight;
+
+		//access ordered, so iteration starts at the least recently used entry
+		private final LinkedHashMap<Key, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+		private long weight = 0;
+
+		private Segment(long maxEntries, long maxWeight) {
+			this.maxEntries = maxEntries;
+			this.maxWeight = maxWeight;
+		}
+
+		private synchronized Document get(Key key, long now) {
+			CacheEntry entry = entries.get(key);
+
+			if(entry == null)
+				return null;
+
+			if(entry.expiresAt <= now) {
+				entries.remove(key);
+				weight -= entry.weight;
+				return null;
+			}
+
+			return entry.doc;
+		}
+
+		/**
+		 * @return the number of entries evicted to make room
+		 */
+		private synchronized long put(Region region, Key key, CacheEntry entry, boolean replace, long stamp) {
+			//checked under the lock, so an invalidation either sees this entry and removes it, or stops it here
+			if(region.generation.get() > stamp)
+				return 0;
+
+			CacheEntry existing = entries.get(key);
+
+			if(existing != null) {
+				if(false == replace)
+					return 0;
+
+				weight -= existing.weight;
+			}
+
+			entries.put(key, entry);
+			weight += entry.weight;
+
+			long evicted = 0;
+			Iterator<CacheEntry> eldest = entries.values().iterator();
+
+			//never evict the entry we just added
+			while((entries.size() > maxEntries || weight > maxWeight) && entries.size() > 1) {
+				CacheEntry victim = eldest.next();
+				eldest.remove();
+				weight -= victim.weight;
+				evicted++;
+			}
+
+			return evicted;
+		}
+
+		private synchronized void remove(Key key) {
+			CacheEntry entry = entries.remove(key);
+
+			if(entry != null)
+				weight -= entry.weight;
+		}
+
+		private synchronized void clear() {
+			entries.clear();
+			weight = 0;
+		}
+	}
+
+	private static class CacheEntry {
+		private final Document doc;
+		private final long weight;
+		private final long expiresAt;
+
+		private CacheEntry(Document doc, long weight, long expiresAt) {
+			this.doc = doc;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
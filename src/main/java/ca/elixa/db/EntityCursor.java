@@ -0,0 +1,66 @@
+package ca.elixa.db;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCursor;
+
+/**
+ * A lazy view over the results of a query. Entities are built one at a time as they are read, and the driver only
+ * holds a single batch of documents in memory, so memory use doesn't grow with the size of the result.
+ *
+ * This holds a server side cursor open until it is exhausted or closed. Always use it in a try-with-resources.
+ *
+ * See {@link DBService#iterateEntityQuery(Query)}
+ *
+ * @author Evan
+ *
+ * @param <T> - the entity type
+ */
+public class EntityCursor<T extends Entity> implements Iterator<T>, AutoCloseable {
+	private final DBService db;
+	private final String type;
+	private final MongoCursor<Document> cursor;
+	private final Set<String> projections; //This can be null
+
+	protected EntityCursor(DBService db, String type, MongoCursor<Document> cursor, Set<String> projections) {
+		this.db = db;
+		this.type = type;
+		this.cursor = cursor;
+		this.projections = projections;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return cursor.hasNext();
+	}
+
+	@Override
+	public T next() {
+		if(false == cursor.hasNext())
+			throw new NoSuchElementException();
+
+		return db.entityService.buildEntity(db, type, cursor.next(), projections);
+	}
+
+	/**
+	 * @return a sequential stream over the remaining entities. Closing the stream closes this cursor.
+	 */
+	public Stream<T> stream() {
+		Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+
+		return StreamSupport.stream(spliterator, false).onClose(this::close);
+	}
+
+	@Override
+	public void close() {
+		cursor.close();
+	}
+}
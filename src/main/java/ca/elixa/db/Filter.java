@@ -0,0 +1,117 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single predicate on a field, or a group of filters joined by AND or OR. Groups can be nested.
+ *
+ * <pre>
+ * //level between 10 and 20, or an admin
+ * Filter.or(
+ *     Filter.and(Filter.of("level", FilterOperator.GREATER_EQUAL, 10), Filter.of("level", FilterOperator.LESS, 20)),
+ *     Filter.of("admin", FilterOperator.EQUAL, true));
+ * </pre>
+ *
+ * Filters are immutable.
+ *
+ * @author Evan
+ *
+ */
+public final class Filter {
+	public enum Group {
+		AND, OR
+	}
+
+	private final String field; //null for groups
+	private final FilterOperator op;
+	private final Object value;
+
+	private final Group group; //null for predicates
+	private final List<Filter> children;
+
+	private Filter(String field, FilterOperator op, Object value, Group group, List<Filter> children) {
+		this.field = field;
+		this.op = op;
+		this.value = value;
+		this.group = group;
+		this.children = children;
+	}
+
+	/**
+	 * @param field
+	 * @param op
+	 * @param value - for IN and NOT_IN a collection, for EXISTS a boolean
+	 * @return the predicate
+	 */
+	public static Filter of(String field, FilterOperator op, Object value) {
+		return new Filter(field, op, value, null, null);
+	}
+
+	public static Filter and(Filter...filters) {
+		return group(Group.AND, Arrays.asList(filters));
+	}
+
+	public static Filter or(Filter...filters) {
+		return group(Group.OR, Arrays.asList(filters));
+	}
+
+	public static Filter group(Group group, List<Filter> filters) {
+		if(filters.isEmpty())
+			throw new IllegalArgumentException("A filter group needs at least one filter");
+
+		return new Filter(null, null, null, group, Collections.unmodifiableList(new ArrayList<>(filters)));
+	}
+
+	public boolean isGroup() {
+		return group != null;
+	}
+
+	/**
+	 * @return the field, or null if this is a group
+	 */
+	public String getField() {
+		return field;
+	}
+
+	public FilterOperator getOperator() {
+		return op;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	/**
+	 * @return how the children are joined, or null if this is a predicate
+	 */
+	public Group getGroup() {
+		return group;
+	}
+
+	/**
+	 * @return the filters in this group, or null if this is a predicate
+	 */
+	public List<Filter> getChildren() {
+		return children;
+	}
+
+	@Override
+	public String toString() {
+		if(group == null)
+			return field + " " + op + " " + value;
+
+		StringBuilder result = new StringBuilder("(");
+
+		for(int i = 0; i < children.size(); i++) {
+			if(i > 0)
+				result.append(" ").append(group).append(" ");
+
+			result.append(children.get(i));
+		}
+
+		return result.append(")").toString();
+	}
+}
@@ -1,5 +1,9 @@
 package ca.elixa.db;
 
 public enum FilterOperator {
-    EQUAL, NOT_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL
+    EQUAL, NOT_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL,
+    //the value is a collection
+    IN, NOT_IN,
+    //the value is a boolean, whether the field should be present
+    EXISTS
 }
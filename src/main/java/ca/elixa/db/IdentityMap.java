@@ -0,0 +1,71 @@
+package ca.elixa.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A unit of work: holds at most one {@link Entity} object per key, so that every lookup of the same key inside a
+ * scope hands back the same object, without going back to the DB.
+ *
+ * See {@link DBService#enableIdentityMap()} and {@link DBService#withIdentityMap(Runnable)}.
+ *
+ * @author Evan
+ *
+ */
+public class IdentityMap {
+	private final Map<Key, Entity> entities = new ConcurrentHashMap<>();
+
+	/**
+	 * @param key
+	 * @return the entity loaded for this key, or null if it hasn't been loaded in this scope.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Entity> T get(Key key) {
+		return (T) entities.get(key);
+	}
+
+	public boolean contains(Key key) {
+		return entities.containsKey(key);
+	}
+
+	/**
+	 * Register an entity. If another object is already registered for its key, that one is kept and returned.
+	 * @param ent
+	 * @return the entity that is now registered for the key
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Entity> T put(T ent) {
+		Entity existing = entities.putIfAbsent(ent.getKey(), ent);
+
+		return existing == null ? ent : (T) existing;
+	}
+
+	/**
+	 * Register an entity that was just saved, in place of whatever was registered for its key. That one may hold
+	 * what is stored no longer.
+	 * @param ent
+	 */
+	public void replace(Entity ent) {
+		entities.put(ent.getKey(), ent);
+	}
+
+	public void remove(Key key) {
+		entities.remove(key);
+	}
+
+	/**
+	 * Forget every entity of a type. Used when a query modifies documents we can't enumerate.
+	 * @param type
+	 */
+	public void removeType(String type) {
+		entities.keySet().removeIf(key -> key.getType().equals(type));
+	}
+
+	public void clear() {
+		entities.clear();
+	}
+
+	public int size() {
+		return entities.size();
+	}
+}
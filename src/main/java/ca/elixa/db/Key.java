@@ -1,55 +1,220 @@
 package ca.elixa.db;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.BsonBinarySubType;
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 /**
  * This contains an immutable reference to an Entity, by combining its type(collection) and id.
+ *
+ * Keys are held by the million in key lists and caches, so they're kept small: the 12 bytes of the ObjectId are stored
+ * as a long and an int rather than as a hex string, type names are interned, and the hash is computed once. Ids that
+ * aren't ObjectIds are kept as they are.
  * @author Evan
- * 
- * TODO consider if we want a method to encode the entire key
  *
  */
 public class Key {
+	//marks a key stored in its compact form, see DBService.setCompactKeyStorage
+	protected static final byte COMPACT_SUBTYPE = BsonBinarySubType.USER_DEFINED.getValue();
+
+	private static final ConcurrentHashMap<String, String> TYPES = new ConcurrentHashMap<>();
+
 	private final String type;
-	private final String id;
+	private final long high; //the first 8 bytes of the ObjectId
+	private final int low; //the last 4 bytes of the ObjectId
+	private final String fallbackId; //the id, if it isn't an ObjectId. Null otherwise
+	private final int hash;
+
 	protected Key(String type, String id) {
-		this.type = type;
-		this.id = id;
+		this.type = intern(type);
+
+		if(ObjectId.isValid(id)) {
+			ByteBuffer bytes = ByteBuffer.wrap(new ObjectId(id).toByteArray());
+			this.high = bytes.getLong();
+			this.low = bytes.getInt();
+			this.fallbackId = null;
+		}
+		else {
+			this.high = 0;
+			this.low = 0;
+			this.fallbackId = id;
+		}
+
+		this.hash = computeHash();
 	}
 	protected Key(Document doc) {
-		type = doc.getString("type");
-		id = doc.getString("id");
+		this(doc.getString("type"), idOf(doc.get("id")));
 	}
 	protected Key(String type, ObjectId id) {
-		this.type = type;
-		this.id = id.toHexString();
+		this(type, ByteBuffer.wrap(id.toByteArray()));
+	}
+
+	private Key(String type, ByteBuffer objectId) {
+		this(type, objectId.getLong(), objectId.getInt());
+	}
+
+	/**
+	 * @param type
+	 * @param high - the first 8 bytes of the ObjectId
+	 * @param low - the last 4 bytes of the ObjectId
+	 */
+	protected Key(String type, long high, int low) {
+		this.type = intern(type);
+		this.high = high;
+		this.low = low;
+		this.fallbackId = null;
+		this.hash = computeHash();
+	}
+
+	private static String idOf(Object id) {
+		return id instanceof ObjectId oid ? oid.toHexString() : (String) id;
+	}
+
+	protected static String intern(String type) {
+		String existing = TYPES.putIfAbsent(type, type);
+
+		return existing == null ? type : existing;
+	}
+
+	private int computeHash() {
+		int result = type.hashCode();
+
+		if(fallbackId != null)
+			return 31 * result + fallbackId.hashCode();
 
+		return 31 * (31 * result + Long.hashCode(high)) + low;
 	}
-	
+
 	/**
 	 * Turns this into a document; this is to store it on another document.
 	 * @return the composed BSON document
 	 */
 	public Document toDocument() {
 		Document result = new Document();
-		
+
 		result.put("type", type);
-		result.put("id", id);
-		
+		result.put("id", getId());
+
+		return result;
+	}
+
+	/**
+	 * @param compact - whether keys are stored compactly, see DBService.setCompactKeyStorage
+	 * @return this key the way it is stored on another document
+	 */
+	public Object toStoredValue(boolean compact) {
+		if(fallbackId != null)
+			return toDocument();
+
+		return toStoredValue(type, high, low, compact);
+	}
+
+	/**
+	 * The stored form of a key with an ObjectId, without building the key.
+	 */
+	protected static Object toStoredValue(String type, long high, int low, boolean compact) {
+		if(compact)
+			return toCompactValue(type, high, low);
+
+		Document result = new Document();
+
+		result.put("type", type);
+		result.put("id", toObjectId(high, low).toHexString());
+
 		return result;
 	}
-	
+
+	/**
+	 * The compact stored form, whether or not keys are currently stored compactly.
+	 */
+	protected static Binary toCompactValue(String type, long high, int low) {
+		byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+
+		ByteBuffer bytes = ByteBuffer.allocate(12 + typeBytes.length)
+				.putLong(high)
+				.putInt(low)
+				.put(typeBytes);
+
+		return new Binary(COMPACT_SUBTYPE, bytes.array());
+	}
+
+	/**
+	 * Read a key stored on a document, in either of its forms.
+	 * @param value - a {type, id} document, or a compact binary key
+	 * @return the key, or null if the value is null
+	 */
+	public static Key fromStoredValue(Object value) {
+		if(value == null)
+			return null;
+
+		if(value instanceof Document doc)
+			return new Key(doc);
+
+		if(value instanceof Binary binary && binary.getType() == COMPACT_SUBTYPE && binary.length() >= 12) {
+			byte[] data = binary.getData();
+			String type = new String(data, 12, data.length - 12, StandardCharsets.UTF_8);
+
+			return new Key(type, ByteBuffer.wrap(data, 0, 12));
+		}
+
+		throw new IllegalArgumentException("Not a stored key: " + value);
+	}
+
 	public String getType() {
 		return type;
 	}
+
+	/**
+	 * @return the id as a hex string. This is built on every call; prefer toObjectId, or BsonService.getFilterForKey
+	 */
 	public String getId() {
-		return id;
+		return fallbackId != null ? fallbackId : toObjectId().toHexString();
+	}
+
+	/**
+	 * @return true if the id is an ObjectId, which is always the case for keys this library allocates
+	 */
+	public boolean hasObjectId() {
+		return fallbackId == null;
+	}
+
+	/**
+	 * @return the id, without parsing any hex
+	 */
+	public ObjectId toObjectId() {
+		if(fallbackId != null)
+			throw new IllegalStateException(this + " does not have an ObjectId");
+
+		return toObjectId(high, low);
+	}
+
+	protected static ObjectId toObjectId(long high, int low) {
+		return new ObjectId(ByteBuffer.allocate(12).putLong(high).putInt(low).flip());
+	}
+
+	/**
+	 * @return the first 8 bytes of the ObjectId. Only valid if hasObjectId
+	 */
+	protected long getIdHigh() {
+		return high;
+	}
+
+	/**
+	 * @return the last 4 bytes of the ObjectId. Only valid if hasObjectId
+	 */
+	protected int getIdLow() {
+		return low;
 	}
 
 	@Override
 	public String toString(){
-		return type + "(" + id + ")";
+		return type + "(" + getId() + ")";
 	}
 
 	/**
@@ -79,10 +244,18 @@ public class Key {
 
 	@Override
 	public boolean equals(Object o){
-		if(o instanceof Key newKey){
+		if(o == this)
+			return true;
 
-			return newKey.getId().equals(getId()) && newKey.getType().equals(getType());
+		if(o instanceof Key other){
+			return other.hash == hash && other.high == high && other.low == low
+					&& Objects.equals(other.fallbackId, fallbackId) && other.type.equals(type);
 		}
 		return false;
 	}
+
+	@Override
+	public int hashCode(){
+		return hash;
+	}
 }
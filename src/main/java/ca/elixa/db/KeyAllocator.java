@@ -0,0 +1,18 @@
+package ca.elixa.db;
+
+/**
+ * Hands out keys for fresh entities. See {@link DBService#setKeyAllocator(KeyAllocator)}.
+ *
+ * Implementations must be thread safe, and must never hand out the same key twice.
+ *
+ * @author Evan
+ *
+ */
+public interface KeyAllocator {
+
+	/**
+	 * @param type - the entity type the key is for
+	 * @return a key that is not used by any other entity of that type
+	 */
+	Key allocate(String type);
+}
@@ -0,0 +1,430 @@
+package ca.elixa.db;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * An insertion ordered set of keys, for reference lists too big to hold as a List of Keys (ie. memberships and
+ * inventories). Keys are packed into primitive arrays rather than held as a Document or Key each, and a hash index
+ * gives O(1) contains, add and remove. A Key is only built when one is read out.
+ *
+ * Read one off an entity with {@link Entity#getKeyListValue(String)}; changes are written back when the entity is
+ * saved. It is stored as a regular list of keys, so queries and getKeyList keep working on the same field.
+ *
+ * Only keys with ObjectIds can be held. This is not thread safe.
+ *
+ * @author Evan
+ *
+ */
+public class KeyList extends AbstractSet<Key> {
+	private static final int REMOVED = -1;
+
+	private String[] types = new String[0]; //interned, so they're compared by reference
+
+	//one slot per key ever added since the last compaction. A removed key's slot has its type set to REMOVED
+	private short[] typeIds;
+	private long[] highs;
+	private int[] lows;
+	private int length = 0;
+	private int size = 0;
+
+	//open addressing, linear probing. Holds slot + 1, 0 is empty
+	private int[] index;
+
+	private int modCount = 0;
+
+	//what changed since the entity last wrote this back, so a save can send just that. See Entity.flushKeyLists
+	private Change change = Change.NONE;
+	private final List<Key> changed = new ArrayList<>();
+
+	protected enum Change {
+		NONE, ADDED, REMOVED, REWRITTEN
+	}
+
+	public KeyList() {
+		this(16);
+	}
+
+	public KeyList(int capacity) {
+		capacity = Math.max(capacity, 4);
+
+		typeIds = new short[capacity];
+		highs = new long[capacity];
+		lows = new int[capacity];
+		index = new int[tableSize(capacity)];
+	}
+
+	public KeyList(Collection<Key> keys) {
+		this(keys.size());
+		addAll(keys);
+	}
+
+	private static int tableSize(int capacity) {
+		//at most half full
+		return Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) << 1;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Key key && key.hasObjectId() && find(key) >= 0;
+	}
+
+	/**
+	 * @param key - a key with an ObjectId
+	 * @return false if it was already in here
+	 */
+	@Override
+	public boolean add(Key key) {
+		if(false == key.hasObjectId())
+			throw new IllegalArgumentException("A KeyList can only hold keys with ObjectIds, got " + key);
+
+		if(find(key) >= 0)
+			return false;
+
+		append(typeId(key.getType()), key.getIdHigh(), key.getIdLow());
+		recordChange(Change.ADDED, key);
+
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof Key key) || false == key.hasObjectId())
+			return false;
+
+		int slot = find(key);
+
+		if(slot < 0)
+			return false;
+
+		removeSlot(slot);
+		recordChange(Change.REMOVED, key);
+
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		if(size == 0)
+			return;
+
+		Arrays.fill(index, 0);
+		length = 0;
+		size = 0;
+		modCount++;
+
+		change = Change.REWRITTEN;
+		changed.clear();
+	}
+
+	/**
+	 * @return the keys, in the order they were added
+	 */
+	@Override
+	public Iterator<Key> iterator() {
+		return new Iterator<>() {
+			private int next = skipRemoved(0);
+			private int last = -1;
+			private int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return next < length;
+			}
+
+			@Override
+			public Key next() {
+				if(modCount != expectedModCount)
+					throw new ConcurrentModificationException();
+
+				if(next >= length)
+					throw new NoSuchElementException();
+
+				last = next;
+				next = skipRemoved(next + 1);
+
+				return keyAt(last);
+			}
+
+			@Override
+			public void remove() {
+				if(last < 0)
+					throw new IllegalStateException();
+
+				if(modCount != expectedModCount)
+					throw new ConcurrentModificationException();
+
+				Key key = keyAt(last);
+
+				//never compacts mid iteration, see removeSlot
+				removeSlot(last);
+				recordChange(Change.REMOVED, key);
+
+				last = -1;
+				expectedModCount = modCount;
+			}
+		};
+	}
+
+	private int skipRemoved(int slot) {
+		while(slot < length && typeIds[slot] == REMOVED)
+			slot++;
+
+		return slot;
+	}
+
+	private Key keyAt(int slot) {
+		return new Key(types[typeIds[slot]], highs[slot], lows[slot]);
+	}
+
+	/**
+	 * @return the keys, in the order they were added
+	 */
+	public List<Key> toList() {
+		return new ArrayList<>(this);
+	}
+
+	private short typeId(String type) {
+		type = Key.intern(type);
+
+		for(short i = 0; i < types.length; i++) {
+			if(types[i] == type)
+				return i;
+		}
+
+		if(types.length == Short.MAX_VALUE)
+			throw new IllegalStateException("Too many types in one KeyList");
+
+		types = Arrays.copyOf(types, types.length + 1);
+		types[types.length - 1] = type;
+
+		return (short) (types.length - 1);
+	}
+
+	private static int hash(String type, long high, int low) {
+		int h = 31 * (31 * type.hashCode() + Long.hashCode(high)) + low;
+
+		//ObjectIds share their leading bytes, so spread the bits before masking
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the slot holding the key, or -1
+	 */
+	private int find(Key key) {
+		String type = key.getType();
+		long high = key.getIdHigh();
+		int low = key.getIdLow();
+
+		int mask = index.length - 1;
+
+		for(int i = hash(type, high, low) & mask; index[i] != 0; i = (i + 1) & mask) {
+			int slot = index[i] - 1;
+
+			if(highs[slot] == high && lows[slot] == low && typeIds[slot] != REMOVED && types[typeIds[slot]] == type)
+				return slot;
+		}
+
+		return -1;
+	}
+
+	private void append(short typeId, long high, int low) {
+		if(length == highs.length)
+			grow();
+
+		typeIds[length] = typeId;
+		highs[length] = high;
+		lows[length] = low;
+
+		indexSlot(length);
+
+		length++;
+		size++;
+		modCount++;
+	}
+
+	private void indexSlot(int slot) {
+		int mask = index.length - 1;
+		int i = hash(types[typeIds[slot]], highs[slot], lows[slot]) & mask;
+
+		while(index[i] != 0)
+			i = (i + 1) & mask;
+
+		index[i] = slot + 1;
+	}
+
+	private void removeSlot(int slot) {
+		//the slot's index entry stays as a tombstone, so probing carries on past it. Compaction clears them out
+		typeIds[slot] = REMOVED;
+		size--;
+		modCount++;
+	}
+
+	/**
+	 * Make room for more keys. Removed slots are dropped first, if there are enough of them.
+	 */
+	private void grow() {
+		if(size <= length / 2) {
+			compact();
+
+			if(length < highs.length)
+				return;
+		}
+
+		int capacity = highs.length * 2;
+
+		typeIds = Arrays.copyOf(typeIds, capacity);
+		highs = Arrays.copyOf(highs, capacity);
+		lows = Arrays.copyOf(lows, capacity);
+
+		compact();
+	}
+
+	/**
+	 * Drop the removed slots, keeping the order, and rebuild the index.
+	 */
+	private void compact() {
+		int live = 0;
+
+		for(int slot = 0; slot < length; slot++) {
+			if(typeIds[slot] == REMOVED)
+				continue;
+
+			typeIds[live] = typeIds[slot];
+			highs[live] = highs[slot];
+			lows[live] = lows[slot];
+			live++;
+		}
+
+		length = live;
+		index = new int[tableSize(highs.length)];
+
+		for(int slot = 0; slot < length; slot++)
+			indexSlot(slot);
+	}
+
+	private void recordChange(Change kind, Key key) {
+		if(change == Change.REWRITTEN)
+			return;
+
+		//a mix of adds and removes can't go in one update. Past a point, rewriting the list is cheaper anyway
+		if((change != Change.NONE && change != kind) || changed.size() >= Math.max(16, size / 4)) {
+			change = Change.REWRITTEN;
+			changed.clear();
+			return;
+		}
+
+		change = kind;
+		changed.add(key);
+	}
+
+	/**
+	 * @return how this changed since the last markSynced
+	 */
+	protected Change getChange() {
+		return change;
+	}
+
+	/**
+	 * @return the keys added or removed since the last markSynced, if the change is ADDED or REMOVED
+	 */
+	protected List<Key> getChangedKeys() {
+		return changed;
+	}
+
+	/**
+	 * Called once the entity holds everything this list does.
+	 */
+	protected void markSynced() {
+		change = Change.NONE;
+		changed.clear();
+	}
+
+	/**
+	 * @param compact - whether keys are stored compactly, see DBService.setCompactKeyStorage
+	 * @return the keys as they are stored on a document
+	 */
+	public List<Object> toStoredValue(boolean compact) {
+		List<Object> result = new ArrayList<>(size);
+
+		for(int slot = 0; slot < length; slot++) {
+			if(typeIds[slot] != REMOVED)
+				result.add(Key.toStoredValue(types[typeIds[slot]], highs[slot], lows[slot], compact));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Read a stored list of keys, in either of their stored forms. Duplicates are dropped. No Keys are built.
+	 * @param stored - the stored list. Can be null
+	 * @return the list
+	 */
+	public static KeyList fromStoredValue(List<?> stored) {
+		if(stored == null)
+			return new KeyList();
+
+		KeyList result = new KeyList(stored.size());
+
+		for(Object value : stored) {
+			if(value instanceof Binary binary && binary.getType() == Key.COMPACT_SUBTYPE && binary.length() >= 12) {
+				byte[] data = binary.getData();
+				ByteBuffer bytes = ByteBuffer.wrap(data);
+
+				result.addPacked(new String(data, 12, data.length - 12, StandardCharsets.UTF_8), bytes.getLong(), bytes.getInt());
+			}
+			else if(value instanceof Document doc && toObjectId(doc.get("id")) != null) {
+				ByteBuffer bytes = ByteBuffer.wrap(toObjectId(doc.get("id")).toByteArray());
+
+				result.addPacked(doc.getString("type"), bytes.getLong(), bytes.getInt());
+			}
+			else
+				result.add(Key.fromStoredValue(value));
+		}
+
+		//what was read is what is stored
+		result.markSynced();
+
+		return result;
+	}
+
+	private static ObjectId toObjectId(Object id) {
+		if(id instanceof ObjectId oid)
+			return oid;
+
+		return id instanceof String hex && ObjectId.isValid(hex) ? new ObjectId(hex) : null;
+	}
+
+	private void addPacked(String type, long high, int low) {
+		short typeId = typeId(type);
+		String interned = types[typeId];
+
+		int mask = index.length - 1;
+
+		for(int i = hash(interned, high, low) & mask; index[i] != 0; i = (i + 1) & mask) {
+			int slot = index[i] - 1;
+
+			if(highs[slot] == high && lows[slot] == low && typeIds[slot] == typeId)
+				return;
+		}
+
+		append(typeId, high, low);
+	}
+}
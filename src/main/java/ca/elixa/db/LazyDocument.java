@@ -0,0 +1,227 @@
+package ca.elixa.db;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * A Document backed by the bytes it was read as. Fields are only decoded when they are read, and each is decoded at
+ * most once.
+ *
+ * The first write, or anything that needs every field (iterating, equals, toJson), decodes the rest of the document
+ * and from then on this is a plain Document. Values handed out are the decoded values, so a list changed in place
+ * is kept, but it is only written back once the entity marks the field dirty, which also decodes the rest.
+ *
+ * See {@link DBService#enableLazyDecoding(String...)}
+ *
+ * @author Evan
+ *
+ */
+public class LazyDocument extends Document {
+	private static final long serialVersionUID = 1L;
+
+	private static final DocumentCodec DEFAULT_CODEC = new DocumentCodec();
+
+	//null once materialized. Only read, so copies can share it
+	private transient RawBsonDocument bytes;
+
+	//decodes fields out of the bytes. Nested documents come out as plain Documents
+	private final transient Decoder<Document> decoder;
+
+	public LazyDocument(RawBsonDocument bytes) {
+		this(bytes, DEFAULT_CODEC);
+	}
+
+	/**
+	 * @param bytes - the document as it was read
+	 * @param decoder - decodes fields, ie. the client's Document codec so uuids and such come out the same as usual
+	 */
+	public LazyDocument(RawBsonDocument bytes, Decoder<Document> decoder) {
+		this.bytes = bytes;
+		this.decoder = decoder;
+	}
+
+	/**
+	 * @return a new LazyDocument over the same bytes, or null if this has been written to.
+	 */
+	protected LazyDocument copyUnread() {
+		return bytes == null ? null : new LazyDocument(bytes, decoder);
+	}
+
+	/**
+	 * @return the bytes this was read as, or null if it has been written to since.
+	 */
+	protected RawBsonDocument getBytes() {
+		return bytes;
+	}
+
+	public boolean isMaterialized() {
+		return bytes == null;
+	}
+
+	/**
+	 * Decode every field not decoded yet, and drop the bytes. Fields already handed out keep their objects.
+	 */
+	protected void materialize() {
+		if(bytes == null)
+			return;
+
+		Document full = bytes.decode(decoder);
+		Map<String, Object> ordered = new LinkedHashMap<>();
+
+		for(Map.Entry<String, Object> entry : full.entrySet()) {
+			String key = entry.getKey();
+			ordered.put(key, super.containsKey(key) ? super.get(key) : entry.getValue());
+		}
+
+		bytes = null;
+
+		super.clear();
+		super.putAll(ordered);
+	}
+
+	/**
+	 * Decode a single field from the bytes.
+	 */
+	private Object decode(String key, BsonValue value) {
+		BsonDocumentReader reader = new BsonDocumentReader(new BsonDocument(key, value));
+
+		return decoder.decode(reader, DecoderContext.builder().build()).get(key);
+	}
+
+	@Override
+	public Object get(Object key) {
+		if(bytes == null || super.containsKey(key))
+			return super.get(key);
+
+		if(!(key instanceof String field))
+			return null;
+
+		BsonValue value = bytes.get(field);
+
+		if(value == null)
+			return null;
+
+		Object result = decode(field, value);
+		super.put(field, result);
+
+		return result;
+	}
+
+	@Override
+	public <T> T get(Object key, Class<T> clazz) {
+		return clazz.cast(get(key));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T get(Object key, T defaultValue) {
+		Object value = get(key);
+
+		return value == null ? defaultValue : (T) value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if(bytes == null || super.containsKey(key))
+			return super.containsKey(key);
+
+		return bytes.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return bytes == null ? super.size() : bytes.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return bytes == null ? super.isEmpty() : bytes.isEmpty();
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		materialize();
+		return super.containsValue(value);
+	}
+
+	@Override
+	public Document append(String key, Object value) {
+		materialize();
+		return super.append(key, value);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		materialize();
+		return super.put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		materialize();
+		return super.remove(key);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ?> map) {
+		materialize();
+		super.putAll(map);
+	}
+
+	@Override
+	public void clear() {
+		bytes = null;
+		super.clear();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		materialize();
+		return super.keySet();
+	}
+
+	@Override
+	public Collection<Object> values() {
+		materialize();
+		return super.values();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		materialize();
+		return super.entrySet();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		materialize();
+
+		if(o instanceof LazyDocument other)
+			other.materialize();
+
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		materialize();
+		return super.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		materialize();
+		return super.toString();
+	}
+}
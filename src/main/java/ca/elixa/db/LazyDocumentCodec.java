@@ -0,0 +1,77 @@
+package ca.elixa.db;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Reads documents straight off the wire as {@link LazyDocument}s, copying their bytes rather than decoding them.
+ *
+ * Writing a LazyDocument that hasn't been written to sends its bytes back as they are. Anything else is encoded like
+ * any other Document.
+ *
+ * @author Evan
+ *
+ */
+public class LazyDocumentCodec implements CollectibleCodec<Document> {
+	private final RawBsonDocumentCodec rawCodec = new RawBsonDocumentCodec();
+	private final CollectibleCodec<Document> documentCodec;
+
+	/**
+	 * @param registry - the registry used for everything that isn't lazy
+	 */
+	public LazyDocumentCodec(CodecRegistry registry) {
+		Codec<Document> codec = registry.get(Document.class);
+
+		documentCodec = codec instanceof CollectibleCodec<Document> collectible ? collectible : new DocumentCodec(registry);
+	}
+
+	@Override
+	public Document decode(BsonReader reader, DecoderContext context) {
+		return new LazyDocument(rawCodec.decode(reader, context), documentCodec);
+	}
+
+	@Override
+	public void encode(BsonWriter writer, Document doc, EncoderContext context) {
+		RawBsonDocument bytes = doc instanceof LazyDocument lazy ? lazy.getBytes() : null;
+
+		if(bytes == null) {
+			documentCodec.encode(writer, doc, context);
+			return;
+		}
+
+		try(BsonBinaryReader reader = new BsonBinaryReader(bytes.getByteBuffer().asNIO())) {
+			writer.pipe(reader);
+		}
+	}
+
+	@Override
+	public Class<Document> getEncoderClass() {
+		return Document.class;
+	}
+
+	@Override
+	public Document generateIdIfAbsentFromDocument(Document doc) {
+		return documentCodec.generateIdIfAbsentFromDocument(doc);
+	}
+
+	@Override
+	public boolean documentHasId(Document doc) {
+		return documentCodec.documentHasId(doc);
+	}
+
+	@Override
+	public BsonValue getDocumentId(Document doc) {
+		return documentCodec.getDocumentId(doc);
+	}
+}
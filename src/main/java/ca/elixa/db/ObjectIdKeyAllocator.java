@@ -0,0 +1,17 @@
+package ca.elixa.db;
+
+import org.bson.types.ObjectId;
+
+/**
+ * The default allocator. ObjectIds are unique by construction, so this never talks to the DB.
+ *
+ * @author Evan
+ *
+ */
+public class ObjectIdKeyAllocator implements KeyAllocator {
+
+	@Override
+	public Key allocate(String type) {
+		return new Key(type, new ObjectId());
+	}
+}
@@ -0,0 +1,36 @@
+package ca.elixa.db;
+
+/**
+ * Thrown when saving an entity of a type with optimistic locking, if the document was saved by someone else since the
+ * entity was loaded. Nothing was written. See {@link DBService#enableOptimisticLocking(String...)}
+ *
+ * Load the entity again and redo the change, or let {@link DBService#retryOnConflict(java.util.function.Supplier)}
+ * do it.
+ *
+ * @author Evan
+ *
+ */
+public class OptimisticLockException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final Key key;
+	private final long expectedVersion;
+
+	public OptimisticLockException(Key key, long expectedVersion) {
+		super(key + " was modified concurrently, expected version " + expectedVersion);
+
+		this.key = key;
+		this.expectedVersion = expectedVersion;
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the version the entity was loaded at
+	 */
+	public long getExpectedVersion() {
+		return expectedVersion;
+	}
+}
@@ -0,0 +1,36 @@
+package ca.elixa.db;
+
+import java.util.List;
+
+/**
+ * A single page of results from {@link DBService#runPagedQuery(Query, int, String)}.
+ *
+ * @author Evan
+ *
+ * @param <T> - the entity type
+ */
+public class Page<T extends Entity> {
+	private final List<T> entities;
+	private final String continuationToken;
+
+	protected Page(List<T> entities, String continuationToken) {
+		this.entities = entities;
+		this.continuationToken = continuationToken;
+	}
+
+	public List<T> getEntities() {
+		return entities;
+	}
+
+	/**
+	 * Pass this back into runPagedQuery, with the same query, to get the next page.
+	 * @return an opaque token, or null if this is the last page.
+	 */
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+
+	public boolean hasMore() {
+		return continuationToken != null;
+	}
+}
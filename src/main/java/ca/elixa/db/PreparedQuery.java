@@ -0,0 +1,279 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.FindIterable;
+
+/**
+ * A query compiled once, and run any number of times with different values. See {@link DBService#prepare(Query)}
+ *
+ * The filter, update, projection and sort are rendered to bson up front. Running the plan only encodes the bound
+ * values, and copies the parts of the bson that hold a {@link QueryParam}; everything else is shared between runs.
+ *
+ * A plan is immutable, so it can be kept in a static and shared between threads. Bindings are not, use one per run.
+ *
+ * <pre>
+ * PreparedQuery byLevel = db.prepare(new Query("Player").addFilter("level", FilterOperator.GREATER, QueryParam.named("min")));
+ * List&lt;Player&gt; players = byLevel.bind("min", 10).fetch();
+ * </pre>
+ *
+ * @author Evan
+ *
+ */
+public class PreparedQuery {
+	//what a parameter is rendered as in the template, until it is bound
+	private static final String SLOT = "$$queryParam";
+
+	private final DBService db;
+	private final CodecRegistry registry;
+	private final String type;
+
+	private final BsonDocument filter;
+	private final BsonDocument update; //null if the query has no updates
+	private final boolean upsert;
+	private final BsonDocument projection; //null if the query isn't projected
+	private final Set<String> projections; //null if the query isn't projected
+	private final BsonDocument sort; //null if the query isn't sorted
+	private final int skip;
+	private final int limit;
+	private final int batchSize;
+	private final String[] prefetches;
+
+	private final Set<String> parameters = new LinkedHashSet<>();
+	//every template node that holds a slot somewhere below it. Nothing else is ever copied
+	private final Set<BsonValue> withSlots = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	protected PreparedQuery(DBService db, Query q) {
+		this.db = db;
+		this.registry = db.db.getCodecRegistry();
+		this.type = q.getType();
+
+		filter = compile(BsonService.generateCompositeFilter(q.filters, this::templateValue));
+
+		update = q.updates.isEmpty() ? null : compile(BsonService.generateUpdates(q.updates, this::templateValue));
+		upsert = q.isUpsert();
+
+		projections = q.projections.isEmpty() ? null : Collections.unmodifiableSet(new LinkedHashSet<>(q.projections));
+		projection = projections == null ? null : compile(BsonService.generateProjections(projections));
+
+		Bson sorts = BsonService.generateSorts(q.sorts);
+		sort = sorts == null ? null : compile(sorts);
+
+		skip = q.getSkip();
+		limit = q.getLimit();
+		batchSize = q.getBatchSize();
+		prefetches = q.prefetches.toArray(new String[0]);
+	}
+
+	/**
+	 * Swap parameters for slot markers, and parse everything else like a regular query would.
+	 */
+	private Object templateValue(Object value) {
+		if(value instanceof QueryParam param)
+			return new Document(SLOT, param.getName());
+
+		if(value instanceof Collection<?> list) {
+			List<Object> result = new ArrayList<>(list.size());
+
+			for(Object o : list)
+				result.add(templateValue(o));
+
+			return result;
+		}
+
+		return db.parseValue(value);
+	}
+
+	private BsonDocument compile(Bson bson) {
+		BsonDocument result = bson.toBsonDocument(Document.class, registry);
+		findSlots(result);
+		return result;
+	}
+
+	/**
+	 * @return true if the node holds a slot somewhere below it
+	 */
+	private boolean findSlots(BsonValue node) {
+		boolean found = false;
+
+		if(node.isDocument()) {
+			BsonDocument doc = node.asDocument();
+
+			if(isSlot(doc)) {
+				parameters.add(doc.getString(SLOT).getValue());
+				found = true;
+			}
+			else {
+				for(BsonValue value : doc.values())
+					found |= findSlots(value);
+			}
+		}
+		else if(node.isArray()) {
+			for(BsonValue value : node.asArray())
+				found |= findSlots(value);
+		}
+
+		if(found)
+			withSlots.add(node);
+
+		return found;
+	}
+
+	private static boolean isSlot(BsonDocument doc) {
+		return doc.size() == 1 && doc.containsKey(SLOT);
+	}
+
+	/**
+	 * Copy the spine of the template down to each slot, filling the slots in.
+	 */
+	private BsonValue substitute(BsonValue node, Map<String, BsonValue> values) {
+		if(false == withSlots.contains(node))
+			return node;
+
+		if(node.isArray()) {
+			BsonArray array = node.asArray();
+			BsonArray result = new BsonArray(new ArrayList<>(array.size()));
+
+			for(BsonValue value : array) {
+				BsonValue bound = substitute(value, values);
+
+				//a list bound to a slot inside of a list is spliced in, so IN :ids works
+				if(value != bound && value.isDocument() && isSlot(value.asDocument()) && bound.isArray())
+					result.addAll(bound.asArray());
+				else
+					result.add(bound);
+			}
+
+			return result;
+		}
+
+		BsonDocument doc = node.asDocument();
+
+		if(isSlot(doc))
+			return values.get(doc.getString(SLOT).getValue());
+
+		BsonDocument result = new BsonDocument();
+
+		for(Map.Entry<String, BsonValue> entry : doc.entrySet())
+			result.put(entry.getKey(), substitute(entry.getValue(), values));
+
+		return result;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return the names of every parameter that must be bound
+	 */
+	public Set<String> getParameters() {
+		return Collections.unmodifiableSet(parameters);
+	}
+
+	/**
+	 * @return an empty binding, to run this plan with
+	 */
+	public Binding bind() {
+		return new Binding();
+	}
+
+	/**
+	 * Shorthand for bind().set(name, value)
+	 * @param name
+	 * @param value
+	 * @return a binding, to run this plan with
+	 */
+	public Binding bind(String name, Object value) {
+		return bind().set(name, value);
+	}
+
+	/**
+	 * The values for a single run of a plan.
+	 */
+	public class Binding {
+		private final Map<String, BsonValue> values = new HashMap<>();
+
+		private Binding() {}
+
+		/**
+		 * @param name - the parameter
+		 * @param value - anything a regular query accepts as a value, ie. a Key
+		 * @return itself
+		 */
+		public Binding set(String name, Object value) {
+			if(false == parameters.contains(name))
+				throw new IllegalArgumentException("Unknown query parameter " + name + ", expected one of " + parameters);
+
+			values.put(name, BsonService.toBsonValue(db.parseValue(value), registry));
+
+			return this;
+		}
+
+		private BsonDocument render(BsonDocument template) {
+			if(values.size() != parameters.size()) {
+				Set<String> missing = new LinkedHashSet<>(parameters);
+				missing.removeAll(values.keySet());
+
+				throw new IllegalStateException("Unbound query parameters " + missing);
+			}
+
+			return substitute(template, values).asDocument();
+		}
+
+		private FindIterable<Document> find() {
+			return db.findInternal(type, render(filter), projection, sort, skip, limit, batchSize);
+		}
+
+		/**
+		 * The same as DBService.runEntityQuery
+		 * @return the matching entities
+		 */
+		public <T extends Entity> List<T> fetch() {
+			List<T> result = db.buildAll(type, find(), projections);
+
+			if(prefetches.length > 0)
+				db.prefetch(result, prefetches);
+
+			return result;
+		}
+
+		/**
+		 * The same as DBService.iterateEntityQuery. The cursor MUST be closed.
+		 * @return an open cursor over the results
+		 */
+		public <T extends Entity> EntityCursor<T> iterate() {
+			return new EntityCursor<>(db, type, find().iterator(), projections);
+		}
+
+		public long count() {
+			return db.count(db.getCollection(type), render(filter));
+		}
+
+		public void update() {
+			if(update == null)
+				throw new IllegalStateException("This query has no updates");
+
+			db.updateManyInternal(type, render(filter), render(update), upsert);
+		}
+
+		public void delete() {
+			db.deleteManyInternal(type, render(filter));
+		}
+	}
+}
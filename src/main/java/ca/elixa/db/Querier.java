@@ -6,14 +6,12 @@ import java.util.List;
 /**
  * Helper methods for querying entities.
  *
- * This can be reused!
+ * This can be reused, and shared between threads! For anything more than a few equality filters, see query(String).
  * 
  * @author Evan
  *
  */
 public class Querier {
-	
-	private Query query = null;
 
 	public final DBService db;
 
@@ -21,18 +19,21 @@ public class Querier {
 		this.db = db;
 	}
 
+	/**
+	 * Start an immutable query, with any number of filters. See {@link QueryBuilder}
+	 * @param type
+	 * @return a builder with no filters
+	 */
+	public QueryBuilder query(String type) {
+		return new QueryBuilder(db, type);
+	}
+
 	public <T extends Entity> List<T> fetchEntities(String type, String field, Object value){
 		return fetchEntities(type, field, FilterOperator.EQUAL, value);
 	}
 	
 	public <T extends Entity> List<T> fetchEntities(String type, String field, FilterOperator op, Object value){
-		
-		Query q = getQuery(type).addFilter(field, op, value);
-		
-		List<T> result = db.runEntityQuery(q);
-		query = null;
-		
-		return result;
+		return query(type).where(field, op, value).fetch();
 	}
 
 	public <T extends Entity> List<T> fetchEntities(String type, String field, Object value,
@@ -41,10 +42,7 @@ public class Querier {
 	}
 	public <T extends Entity> List<T> fetchEntities(String type, String field, FilterOperator op, Object value,
 			String field2, FilterOperator op2, Object value2){
-		
-		getQuery(type).addFilter(field2, op2, value2);
-		
-		return fetchEntities(type, field, op, value);
+		return query(type).where(field, op, value).where(field2, op2, value2).fetch();
 	}
 
 	public <T extends Entity> List<T> fetchEntities(String type, String field, Object value,
@@ -57,10 +55,7 @@ public class Querier {
 	public <T extends Entity> List<T> fetchEntities(String type, String field, FilterOperator op, Object value,
 			String field2, FilterOperator op2, Object value2,
 			String field3, FilterOperator op3, Object value3){
-		
-		getQuery(type).addFilter(field3, op3, value3);
-		
-		return fetchEntities(type, field, op, value, field2, op2, value2);
+		return query(type).where(field, op, value).where(field2, op2, value2).where(field3, op3, value3).fetch();
 	}
 	
 
@@ -68,13 +63,7 @@ public class Querier {
 		return countEntities(type, field, FilterOperator.EQUAL, value);
 	}
 	public Long countEntities(String type, String field, FilterOperator op, Object value){
-		
-		Query q = getQuery(type).addFilter(field, op, value);
-		
-		Long result = db.runCount(q);
-		query = null;
-		
-		return result;
+		return query(type).where(field, op, value).count();
 	}
 	public Long countEntities(String type, String field, Object value,
 							  String field2, Object value2){
@@ -82,10 +71,7 @@ public class Querier {
 	}
 	public Long countEntities(String type, String field, FilterOperator op, Object value,
 			String field2, FilterOperator op2, Object value2){
-		
-		getQuery(type).addFilter(field2, op2, value2);
-		
-		return countEntities(type, field, op, value);
+		return query(type).where(field, op, value).where(field2, op2, value2).count();
 	}
 	public Long countEntities(String type, String field, Object value,
 							  String field2, Object value2,
@@ -97,18 +83,8 @@ public class Querier {
 	public Long countEntities(String type, String field, FilterOperator op, Object value,
 			String field2, FilterOperator op2, Object value2,
 			String field3, FilterOperator op3, Object value3){
-		
-		getQuery(type).addFilter(field3, op3, value3);
-		
-		return countEntities(type, field, op, value, field2, op2, value2);
+		return query(type).where(field, op, value).where(field2, op2, value2).where(field3, op3, value3).count();
 	}
 	
 	//TODO build methods for bulk update and delete
-	
-	private Query getQuery(String type) {
-		if(query == null)
-			return new Query(type);
-		else
-			return query;
-	}
 }
@@ -1,7 +1,11 @@
 package ca.elixa.db;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,11 +15,17 @@ import java.util.Set;
  *
  */
 public class Query {
-	protected Map<String, Pair<FilterOperator, Object>> filters = new HashMap<>();
-	protected Map<String, Object> updates = new HashMap<>();
+	protected List<Filter> filters = new ArrayList<>(); //ANDed together
+	protected Map<String, Pair<UpdateOperator, Object>> updates = new LinkedHashMap<>();
 	protected Set<String> projections = new HashSet<>();
+	protected LinkedHashMap<String, Boolean> sorts = new LinkedHashMap<>(); //property -> ascending, in priority order
+	protected Set<String> prefetches = new LinkedHashSet<>();
 	
 	private final String type;
+	private int batchSize = 0;
+	private int limit = 0;
+	private int skip = 0;
+	private boolean upsert = false;
 	
 	
 	public Query(String type) {
@@ -33,11 +43,31 @@ public class Query {
 	 * @return itself
 	 */
 	public Query addUpdate(String propertyName, Object newValue) {
-		
-		updates.put(propertyName, newValue);
-		
+		return addUpdate(propertyName, UpdateOperator.SET, newValue);
+	}
+
+	/**
+	 * Change a property relative to what is stored, ie. increment it. A property only takes one update.
+	 * @param propertyName
+	 * @param operator
+	 * @param value
+	 * @return itself
+	 */
+	public Query addUpdate(String propertyName, UpdateOperator operator, Object value) {
+		updates.put(propertyName, new Pair<>(operator, value));
+
 		return this;
 	}
+
+	/**
+	 * Same as addUpdate(propertyName, UpdateOperator.INC, amount)
+	 * @param propertyName
+	 * @param amount
+	 * @return itself
+	 */
+	public Query addIncrement(String propertyName, Number amount) {
+		return addUpdate(propertyName, UpdateOperator.INC, amount);
+	}
 	
 	/**
 	 * Remove a modify query value
@@ -71,25 +101,147 @@ public class Query {
 	public Set<String> getProjections(){
 		return projections;
 	}
+
+	/**
+	 * Resolve references on the results as part of the query. See {@link DBService#prefetch(Iterable, String...)}
+	 * If this query is projected, project the referencing properties too.
+	 * @param paths - key or key list properties, dotted to follow references further (owner.team)
+	 * @return itself
+	 */
+	public Query addPrefetch(String...paths) {
+		for(String s : paths)
+			prefetches.add(s);
+
+		return this;
+	}
+
+	public Query removePrefetch(String path) {
+		prefetches.remove(path);
+
+		return this;
+	}
+
+	/**
+	 * How many documents the server sends per round trip when this query is streamed. 0 leaves it up to the driver.
+	 * @param batchSize
+	 * @return itself
+	 */
+	public Query setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+
+		return this;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sort the results by a property. Sorts apply in the order they were added.
+	 * @param propertyName
+	 * @param ascending
+	 * @return itself
+	 */
+	public Query addSort(String propertyName, boolean ascending) {
+		sorts.put(propertyName, ascending);
+
+		return this;
+	}
+
+	public Query removeSort(String propertyName) {
+		sorts.remove(propertyName);
+
+		return this;
+	}
+
+	/**
+	 * @param limit - the max number of results. 0 means no limit.
+	 * @return itself
+	 */
+	public Query setLimit(int limit) {
+		this.limit = limit;
+
+		return this;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Skipped documents are still walked by the server, so deep skips get slower the deeper they go.
+	 * For paging through a large collection, see {@link DBService#runPagedQuery(Query, int, String)}
+	 * @param skip - how many results to skip
+	 * @return itself
+	 */
+	public Query setSkip(int skip) {
+		this.skip = skip;
+
+		return this;
+	}
+
+	public int getSkip() {
+		return skip;
+	}
+
+	/**
+	 * When updating, insert a document if nothing matches. It is built from the equality filters and the updates.
+	 * @param upsert
+	 * @return itself
+	 */
+	public Query setUpsert(boolean upsert) {
+		this.upsert = upsert;
+
+		return this;
+	}
+
+	public boolean isUpsert() {
+		return upsert;
+	}
 	
 	/**
-	 * 
+	 * Filters are ANDed together. A property can be filtered more than once, ie. for a range.
 	 * @param propertyName
 	 * @param operator
-	 * @param value
+	 * @param value - for IN and NOT_IN a collection, for EXISTS a boolean
 	 * @return itself
 	 */
 	public Query addFilter(String propertyName, FilterOperator operator, Object value) {
-		Pair<FilterOperator, Object> duple = new Pair<>(operator, value);
-		
-		filters.put(propertyName, duple);
-		
+		return addFilter(Filter.of(propertyName, operator, value));
+	}
+
+	/**
+	 * Add a filter, or a group of filters. See {@link Filter}
+	 * @param filter
+	 * @return itself
+	 */
+	public Query addFilter(Filter filter) {
+		filters.add(filter);
+
 		return this;
 	}
+
+	/**
+	 * Match documents that pass any of the given filters.
+	 * @param anyOf
+	 * @return itself
+	 */
+	public Query addOrFilter(Filter...anyOf) {
+		return addFilter(Filter.or(anyOf));
+	}
 	
+	/**
+	 * Remove every filter on a property. Groups are left alone.
+	 * @param propertyName
+	 * @return itself
+	 */
 	public Query removeFilter(String propertyName) {
-		filters.remove(propertyName);
+		filters.removeIf(filter -> propertyName.equals(filter.getField()));
 		
 		return this;
 	}
+
+	public List<Filter> getFilters() {
+		return Collections.unmodifiableList(filters);
+	}
 }
@@ -0,0 +1,234 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, fluent query. Every step returns a new builder and leaves the one it was called on untouched, so a
+ * builder can be shared by any number of threads, and partial queries can be kept and extended.
+ *
+ * <pre>
+ * QueryBuilder players = querier.query("Player");
+ * List&lt;Player&gt; veterans = players.where("level", FilterOperator.GREATER, 50).where("banned", false).fetch();
+ * </pre>
+ *
+ * Steps are stored as linked lists that share their tails, so a step costs one small allocation. A {@link Query} is
+ * only built when the query runs, see toQuery.
+ *
+ * @author Evan
+ *
+ */
+public final class QueryBuilder {
+	private final DBService db;
+	private final String type;
+
+	//newest first. Shared with every builder this one was extended from
+	private final Link<Filter> filters;
+	private final Link<Sort> sorts;
+	private final Link<String> projections;
+	private final Link<String> prefetches;
+	private final int limit;
+	private final int skip;
+
+	protected QueryBuilder(DBService db, String type) {
+		this(db, type, null, null, null, null, 0, 0);
+	}
+
+	private QueryBuilder(DBService db, String type, Link<Filter> filters, Link<Sort> sorts, Link<String> projections,
+						 Link<String> prefetches, int limit, int skip) {
+		this.db = db;
+		this.type = type;
+		this.filters = filters;
+		this.sorts = sorts;
+		this.projections = projections;
+		this.prefetches = prefetches;
+		this.limit = limit;
+		this.skip = skip;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Same as where(field, FilterOperator.EQUAL, value)
+	 * @param field
+	 * @param value
+	 * @return a new builder
+	 */
+	public QueryBuilder where(String field, Object value) {
+		return where(field, FilterOperator.EQUAL, value);
+	}
+
+	/**
+	 * @param field
+	 * @param op
+	 * @param value
+	 * @return a new builder, with the filter added
+	 */
+	public QueryBuilder where(String field, FilterOperator op, Object value) {
+		return where(Filter.of(field, op, value));
+	}
+
+	/**
+	 * Filters are ANDed together.
+	 * @param filter - a predicate, or a group of them
+	 * @return a new builder, with the filter added
+	 */
+	public QueryBuilder where(Filter filter) {
+		return new QueryBuilder(db, type, new Link<>(filter, filters), sorts, projections, prefetches, limit, skip);
+	}
+
+	/**
+	 * @param anyOf
+	 * @return a new builder, matching only documents that pass at least one of the given filters
+	 */
+	public QueryBuilder whereAny(Filter...anyOf) {
+		return where(Filter.or(anyOf));
+	}
+
+	/**
+	 * Sorts apply in the order they were added.
+	 * @param field
+	 * @param ascending
+	 * @return a new builder, with the sort added
+	 */
+	public QueryBuilder sortBy(String field, boolean ascending) {
+		return new QueryBuilder(db, type, filters, new Link<>(new Sort(field, ascending), sorts), projections, prefetches, limit, skip);
+	}
+
+	/**
+	 * @param fields
+	 * @return a new builder, projected to the given fields too
+	 */
+	public QueryBuilder project(String...fields) {
+		Link<String> result = projections;
+
+		for(String field : fields)
+			result = new Link<>(field, result);
+
+		return new QueryBuilder(db, type, filters, sorts, result, prefetches, limit, skip);
+	}
+
+	/**
+	 * See {@link Query#addPrefetch(String...)}
+	 * @param paths
+	 * @return a new builder, prefetching the given paths too
+	 */
+	public QueryBuilder prefetch(String...paths) {
+		Link<String> result = prefetches;
+
+		for(String path : paths)
+			result = new Link<>(path, result);
+
+		return new QueryBuilder(db, type, filters, sorts, projections, result, limit, skip);
+	}
+
+	/**
+	 * @param limit - the max number of results. 0 means no limit.
+	 * @return a new builder
+	 */
+	public QueryBuilder limit(int limit) {
+		return new QueryBuilder(db, type, filters, sorts, projections, prefetches, limit, skip);
+	}
+
+	/**
+	 * @param skip - how many results to skip
+	 * @return a new builder
+	 */
+	public QueryBuilder skip(int skip) {
+		return new QueryBuilder(db, type, filters, sorts, projections, prefetches, limit, skip);
+	}
+
+	/**
+	 * @return a fresh Query holding everything this builder describes. Changing it doesn't affect the builder.
+	 */
+	public Query toQuery() {
+		Query q = new Query(type).setLimit(limit).setSkip(skip);
+
+		for(Filter filter : Link.toList(filters))
+			q.addFilter(filter);
+
+		for(Sort sort : Link.toList(sorts))
+			q.addSort(sort.field, sort.ascending);
+
+		for(String field : Link.toList(projections))
+			q.addProjection(field);
+
+		for(String path : Link.toList(prefetches))
+			q.addPrefetch(path);
+
+		return q;
+	}
+
+	public <T extends Entity> List<T> fetch() {
+		return db.runEntityQuery(toQuery());
+	}
+
+	/**
+	 * @return the first result, or null if there are none
+	 */
+	public <T extends Entity> T first() {
+		List<T> result = limit(1).fetch();
+
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * See {@link DBService#iterateEntityQuery(Query)}. The cursor MUST be closed.
+	 * @return an open cursor over the results
+	 */
+	public <T extends Entity> EntityCursor<T> iterate() {
+		return db.iterateEntityQuery(toQuery());
+	}
+
+	public long count() {
+		return db.runCount(toQuery());
+	}
+
+	/**
+	 * Compile this query into a reusable plan. Values can be {@link QueryParam}s.
+	 * @return the plan
+	 */
+	public PreparedQuery prepare() {
+		return db.prepare(toQuery());
+	}
+
+	private static final class Sort {
+		private final String field;
+		private final boolean ascending;
+
+		private Sort(String field, boolean ascending) {
+			this.field = field;
+			this.ascending = ascending;
+		}
+	}
+
+	/**
+	 * A cell of an immutable singly linked list.
+	 */
+	private static final class Link<V> {
+		private final V value;
+		private final Link<V> next;
+
+		private Link(V value, Link<V> next) {
+			this.value = value;
+			this.next = next;
+		}
+
+		/**
+		 * @return the values, oldest first
+		 */
+		private static <V> List<V> toList(Link<V> head) {
+			List<V> result = new ArrayList<>();
+
+			for(Link<V> link = head; link != null; link = link.next)
+				result.add(link.value);
+
+			Collections.reverse(result);
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ca.elixa.db;
+
+/**
+ * A named slot in a prepared query, used in place of a filter or update value. The value is bound every time the
+ * query runs. See {@link DBService#prepare(Query)}
+ *
+ * A slot used as the value of an IN or NOT_IN filter, or as an element of a list, takes a collection; its elements
+ * are spliced into the list.
+ *
+ * @author Evan
+ *
+ */
+public final class QueryParam {
+	private final String name;
+
+	private QueryParam(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param name - the name values are bound to
+	 * @return the slot
+	 */
+	public static QueryParam named(String name) {
+		return new QueryParam(name);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof QueryParam other && name.equals(other.name);
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return ":" + name;
+	}
+}
@@ -0,0 +1,71 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+/**
+ * Adapts the reactive streams driver's Publishers into Vert.x Futures.
+ *
+ * The driver signals on its own threads, so every future is completed back on the Vert.x context that made the call.
+ * This keeps callbacks on the event loop, the same as any other Vert.x api.
+ *
+ * @author Evan
+ *
+ */
+class ReactiveFutures {
+
+	private ReactiveFutures() {}
+
+	/**
+	 * @param context - the context the future is completed on
+	 * @param publisher - the driver operation
+	 * @return every item the publisher emits
+	 */
+	static <T> Future<List<T>> collect(Context context, Publisher<T> publisher) {
+		Promise<List<T>> promise = Promise.promise();
+
+		publisher.subscribe(new Subscriber<T>() {
+			//reactive streams guarantees signals are serial, so this doesn't need to be synchronized
+			private final List<T> results = new ArrayList<>();
+
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(T item) {
+				results.add(item);
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				context.runOnContext(v -> promise.fail(error));
+			}
+
+			@Override
+			public void onComplete() {
+				context.runOnContext(v -> promise.complete(results));
+			}
+		});
+
+		return promise.future();
+	}
+
+	/**
+	 * @param context - the context the future is completed on
+	 * @param publisher - the driver operation
+	 * @return the first item the publisher emits, or null if it emits nothing
+	 */
+	static <T> Future<T> first(Context context, Publisher<T> publisher) {
+		return collect(context, publisher).map(results -> results.isEmpty() ? null : results.get(0));
+	}
+}
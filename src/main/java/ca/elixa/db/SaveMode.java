@@ -0,0 +1,23 @@
+package ca.elixa.db;
+
+/**
+ * How {@link DBService} saves an entity that already exists in the DB. See {@link DBService#setSaveMode(SaveMode)}
+ */
+public enum SaveMode {
+    /**
+     * Only send the top level fields that changed since the entity was loaded, as a $set/$unset update. This is the
+     * default.
+     *
+     * Changes are tracked by the entity's setters. Lists and documents read through the getters are compared with a
+     * copy taken when they were handed out, so changes made to them in place are saved too. A value reached any other
+     * way has to be marked with {@link Entity#markDirty(String)}.
+     */
+    PARTIAL,
+
+    /**
+     * Replace the whole document with the entity's current state.
+     *
+     * In either mode, an existing entity with no changes is not written at all.
+     */
+    REPLACE
+}
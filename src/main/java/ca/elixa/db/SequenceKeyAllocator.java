@@ -0,0 +1,97 @@
+package ca.elixa.db;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Allocates keys from a per-type counter stored in the DB. Ids come out in creation order.
+ *
+ * Each round trip reserves a whole block of ids, which are then handed out locally. A block size of 1 is a plain
+ * sequence counter; anything larger trades possible gaps (unused ids in a block are lost on shutdown) for fewer
+ * round trips.
+ *
+ * The counter is deliberately updated outside of any transaction, so an aborted transaction never hands out an id
+ * twice.
+ *
+ * @author Evan
+ *
+ */
+public class SequenceKeyAllocator implements KeyAllocator {
+	public static final String DEFAULT_COLLECTION = "counters";
+
+	private final DBService db;
+	private final String collection;
+	private final int blockSize;
+
+	//type -> {next, end(exclusive)}
+	private final Map<String, long[]> blocks = new HashMap<>();
+
+	public SequenceKeyAllocator(DBService db, int blockSize) {
+		this(db, DEFAULT_COLLECTION, blockSize);
+	}
+
+	/**
+	 * @param db - the service whose database holds the counters
+	 * @param collection - the collection holding one counter document per type
+	 * @param blockSize - how many ids to reserve per round trip
+	 */
+	public SequenceKeyAllocator(DBService db, String collection, int blockSize) {
+		if(blockSize < 1)
+			throw new IllegalArgumentException("Block size must be positive, got " + blockSize);
+
+		this.db = db;
+		this.collection = collection;
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public synchronized Key allocate(String type) {
+		long[] block = blocks.get(type);
+
+		if(block == null || block[0] >= block[1]) {
+			block = reserveBlock(type);
+			blocks.put(type, block);
+		}
+
+		return new Key(type, toObjectId(block[0]++));
+	}
+
+	/**
+	 * Atomically bump the type's counter by a block.
+	 * @param type
+	 * @return {first id of the block, end of the block(exclusive)}
+	 */
+	private long[] reserveBlock(String type) {
+		//deliberately outside of any transaction, so a rolled back transaction never hands out the same block twice
+		//looked up every time, so it follows the service's current write concern
+		MongoCollection<Document> counters = db.db.getCollection(collection);
+
+		Document counter = counters.findOneAndUpdate(
+				Filters.eq("_id", type),
+				Updates.inc("seq", (long) blockSize),
+				new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+
+		long end = counter.getLong("seq");
+
+		return new long[]{end - blockSize, end};
+	}
+
+	/**
+	 * The sequence number goes in the low 8 bytes, so ids sort in allocation order.
+	 * @param sequence
+	 * @return
+	 */
+	private static ObjectId toObjectId(long sequence) {
+		return new ObjectId(ByteBuffer.allocate(12).putInt(0).putLong(sequence).array());
+	}
+}
@@ -0,0 +1,288 @@
+package ca.elixa.db;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+/**
+ * A counter that takes far more increments per second than a single document can. The count is spread over a number
+ * of shard documents; every increment goes to one shard, and reading it sums them all.
+ *
+ * <pre>
+ * ShardedCounter visits = new ShardedCounter(db, "visits", 16).setCacheDuration(Duration.ofSeconds(1));
+ * visits.increment();
+ * long total = visits.get();
+ * </pre>
+ *
+ * Shards are stored as {_id: "name#i", counter: name, shard: i, value}, and created on their first increment. More
+ * shards means less contention on each of them, and a slightly slower read.
+ *
+ * Increments and reads go through the current transaction, if there is one.
+ *
+ * @author Evan
+ *
+ */
+public class ShardedCounter {
+	public static final String DEFAULT_COLLECTION = "shardedCounters";
+
+	/**
+	 * How increments pick their shard.
+	 */
+	public enum Spread {
+		/**
+		 * A random shard every time. Spreads load evenly no matter how many threads there are.
+		 */
+		RANDOM,
+
+		/**
+		 * The same shard for every increment from a thread, so a thread never contends with itself.
+		 */
+		THREAD
+	}
+
+	private final DBService db;
+	private final String collection;
+	private final String name;
+
+	private volatile int shardCount;
+	private volatile Spread spread = Spread.RANDOM;
+	private volatile long cacheNanos = 0;
+
+	//the last sum we read, and when the read finished. Guarded by this
+	private long cachedValue;
+	private long cachedAt;
+	private boolean cached = false;
+
+	public ShardedCounter(DBService db, String name, int shardCount) {
+		this(db, DEFAULT_COLLECTION, name, shardCount);
+	}
+
+	/**
+	 * @param db - the service whose database holds the shards
+	 * @param collection - the collection holding the shards. Many counters can share one.
+	 * @param name - the counter's name, unique within the collection. Can't contain '#'
+	 * @param shardCount - how many documents the count is spread over
+	 */
+	public ShardedCounter(DBService db, String collection, String name, int shardCount) {
+		if(shardCount < 1)
+			throw new IllegalArgumentException("Shard count must be positive, got " + shardCount);
+
+		if(name.indexOf('#') >= 0)
+			throw new IllegalArgumentException("Invalid counter name " + name);
+
+		this.db = db;
+		this.collection = collection;
+		this.name = name;
+		this.shardCount = shardCount;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * @param spread - how increments pick their shard. Defaults to RANDOM
+	 * @return itself
+	 */
+	public ShardedCounter setSpread(Spread spread) {
+		this.spread = spread;
+		return this;
+	}
+
+	/**
+	 * Serve get() from memory for a while after it was read, instead of summing the shards every time. Our own
+	 * increments are added to the cached value right away; everyone else's show up once it expires. Nothing is cached
+	 * inside a transaction, since what it reads and writes may never commit.
+	 * @param duration - how long a sum is served. Zero or null turns caching off, which is the default
+	 * @return itself
+	 */
+	public ShardedCounter setCacheDuration(Duration duration) {
+		cacheNanos = duration == null ? 0 : duration.toNanos();
+
+		synchronized(this) {
+			cached = false;
+		}
+
+		return this;
+	}
+
+	public void increment() {
+		increment(1);
+	}
+
+	/**
+	 * Add to the counter. This is a single upsert of one shard.
+	 * @param amount - can be negative
+	 */
+	public void increment(long amount) {
+		long startedAt = System.nanoTime();
+
+		incrementShard(pickShard(), amount);
+
+		//it may still be rolled back
+		if(db.currentSession() != null)
+			return;
+
+		//only a sum that was done before we started can't hold the increment already. Adding it to any other would
+		//risk counting it twice; it shows up once that sum expires instead
+		synchronized(this) {
+			if(cached && cachedAt - startedAt < 0)
+				cachedValue += amount;
+		}
+	}
+
+	private int pickShard() {
+		int count = shardCount;
+
+		if(spread == Spread.THREAD)
+			return (int) (Thread.currentThread().getId() % count);
+
+		return ThreadLocalRandom.current().nextInt(count);
+	}
+
+	/**
+	 * @return the sum of every shard, or the cached sum if it's still fresh
+	 */
+	public long get() {
+		long ttl = db.currentSession() == null ? cacheNanos : 0;
+
+		if(ttl > 0) {
+			synchronized(this) {
+				if(cached && System.nanoTime() - cachedAt < ttl)
+					return cachedValue;
+			}
+		}
+
+		long value = sumShards();
+
+		if(ttl > 0) {
+			synchronized(this) {
+				cachedValue = value;
+				cachedAt = System.nanoTime();
+				cached = true;
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Every shard of the counter, whatever the current shard count is. Shards other processes still write to after a
+	 * reshard are counted too, so nothing is lost.
+	 */
+	private long sumShards() {
+		List<Bson> pipeline = Arrays.asList(
+				Aggregates.match(allShards()),
+				Aggregates.group(null, Accumulators.sum("total", "$value")));
+
+		ClientSession s = db.currentSession();
+		Document result = (s == null ? shards().aggregate(pipeline) : shards().aggregate(s, pipeline)).first();
+
+		if(result == null)
+			return 0;
+
+		return ((Number) result.get("total")).longValue();
+	}
+
+	/**
+	 * Change the number of shards, while the counter is in use. Growing just starts using the new shards. Shrinking
+	 * folds the value of every dropped shard into shard 0.
+	 *
+	 * A read racing with a fold can briefly miss the folded amount; nothing is lost. Other processes should be
+	 * resharded too, but an increment that still lands on a dropped shard is counted all the same.
+	 * @param newCount
+	 */
+	public void reshard(int newCount) {
+		if(newCount < 1)
+			throw new IllegalArgumentException("Shard count must be positive, got " + newCount);
+
+		int oldCount = shardCount;
+
+		//stop writing to the shards we're about to drop first
+		shardCount = newCount;
+
+		for(int shard = newCount; shard < oldCount; shard++) {
+			ClientSession s = db.currentSession();
+			Bson filter = Filters.eq("_id", shardId(shard));
+
+			//the delete hands back the value as it was when it went away, so no increment slips through
+			Document dropped = s == null ? shards().findOneAndDelete(filter) : shards().findOneAndDelete(s, filter);
+
+			if(dropped == null)
+				continue;
+
+			long value = ((Number) dropped.get("value")).longValue();
+
+			if(value != 0)
+				incrementShard(0, value);
+		}
+	}
+
+	/**
+	 * Remove every shard, setting the counter back to 0.
+	 */
+	public void reset() {
+		ClientSession s = db.currentSession();
+
+		if(s == null)
+			shards().deleteMany(allShards());
+		else
+			shards().deleteMany(s, allShards());
+
+		synchronized(this) {
+			cached = false;
+		}
+	}
+
+	/**
+	 * Upsert a shard, so it is created on its first increment.
+	 */
+	private void incrementShard(int shard, long amount) {
+		ClientSession s = db.currentSession();
+		Bson filter = Filters.eq("_id", shardId(shard));
+		Bson update = Updates.combine(
+				Updates.inc("value", amount),
+				Updates.setOnInsert("counter", name),
+				Updates.setOnInsert("shard", shard));
+		UpdateOptions options = new UpdateOptions().upsert(true);
+
+		if(s == null)
+			shards().updateOne(filter, update, options);
+		else
+			shards().updateOne(s, filter, update, options);
+	}
+
+	/**
+	 * Looked up on every use, so it follows the service's current read and write concerns.
+	 */
+	private MongoCollection<Document> shards() {
+		return db.db.getCollection(collection);
+	}
+
+	/**
+	 * Shard ids all sort between "name#" and "name$", so this is a range scan of the _id index.
+	 */
+	private Bson allShards() {
+		return Filters.and(Filters.gte("_id", name + "#"), Filters.lt("_id", name + "$"));
+	}
+
+	private String shardId(int shard) {
+		return name + "#" + shard;
+	}
+}
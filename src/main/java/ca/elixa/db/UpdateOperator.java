@@ -0,0 +1,48 @@
+package ca.elixa.db;
+
+/**
+ * How a query update changes a field. See {@link Query#addUpdate(String, UpdateOperator, Object)}
+ * Everything but SET and UNSET is applied by the server relative to what is stored, so concurrent updates don't
+ * overwrite each other.
+ */
+public enum UpdateOperator {
+    /**
+     * Replace the value.
+     */
+    SET,
+
+    /**
+     * Remove the field. The value is ignored.
+     */
+    UNSET,
+
+    /**
+     * Add a number to the value. A missing field counts as 0.
+     */
+    INC,
+
+    /**
+     * Keep the smaller of the stored value and the given one.
+     */
+    MIN,
+
+    /**
+     * Keep the larger of the stored value and the given one.
+     */
+    MAX,
+
+    /**
+     * Append to a list. A collection appends each of its elements.
+     */
+    PUSH,
+
+    /**
+     * Append to a list, unless it's already in there. A collection adds each of its elements.
+     */
+    ADD_TO_SET,
+
+    /**
+     * Remove every matching element from a list. A collection removes each of its elements.
+     */
+    PULL
+}
@@ -0,0 +1,382 @@
+package ca.elixa.db;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import ca.elixa.iris.Iris;
+
+/**
+ * Buffers entity writes, and sends them to the database in large bulk writes.
+ *
+ * Any number of threads may enqueue at once. An enqueue takes a snapshot of the entity's unsaved changes, which is
+ * what gets written; the entity can be changed again straight away, and those changes go with its next enqueue. Writes
+ * to the same key are coalesced, so an entity saved many times between two flushes is only written once. A flush
+ * happens once flushSize writes are pending, once the oldest pending write is maxAge old, or when flush is called.
+ *
+ * The buffer holds at most capacity writes; a thread enqueueing into a full buffer flushes it itself before
+ * continuing, so producers slow down to the speed of the database instead of running out of memory.
+ *
+ * Writes flushed in the background have no caller to report to, see onFlush. A write that fails (other than on a
+ * version conflict) is sent once more, with the next enqueue of its key or the next flush, whichever comes first. If
+ * it fails again it is dropped, and only reported.
+ *
+ * Once closed, the buffer takes no more writes; enqueue returns false, and the caller should write the entity itself.
+ *
+ * See {@link DBService#startBulkPutMode(WriteBehindBuffer)}
+ *
+ * @author Evan
+ *
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+	private final DBService db;
+	private final int flushSize;
+	private final long maxAgeMillis;
+	private final int capacity;
+
+	//write snapshots, see Entity.detachWrite
+	private final Map<Key, Entity> pending = new ConcurrentHashMap<>();
+	private final Map<Key, Entity> failedWrites = new ConcurrentHashMap<>();
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	//enqueues hold the read lock, so close can wait for every enqueue that got in before it
+	private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+	private boolean closed = false; //guarded by closeLock
+
+	//when the oldest pending write was enqueued, or 0 if nothing is pending
+	private final AtomicLong oldestEnqueue = new AtomicLong();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final ScheduledExecutorService scheduler;
+
+	private volatile Consumer<BulkPutResult> flushListener = null;
+
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder flushed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private volatile long lastFlushMillis = 0;
+
+	/**
+	 * @param db - where the writes go
+	 * @param flushSize - flush once this many writes are pending
+	 * @param maxAge - flush once the oldest pending write is this old, or null to never flush on age. When set, size
+	 *                 triggered flushes also happen in the background.
+	 * @param capacity - the most writes that may be pending. Must be at least flushSize.
+	 */
+	public WriteBehindBuffer(DBService db, int flushSize, Duration maxAge, int capacity) {
+		if(flushSize < 1 || capacity < flushSize)
+			throw new IllegalArgumentException("Need 1 <= flushSize <= capacity, got " + flushSize + " and " + capacity);
+
+		this.db = db;
+		this.flushSize = flushSize;
+		this.capacity = capacity;
+		this.maxAgeMillis = maxAge == null ? 0 : Math.max(1, maxAge.toMillis());
+
+		if(maxAge == null) {
+			scheduler = null;
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "WriteBehindBuffer-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long period = Math.max(1, maxAgeMillis / 2);
+		scheduler.scheduleWithFixedDelay(this::flushIfOld, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Call this with the result of every flush, including background ones.
+	 * @param listener
+	 * @return itself
+	 */
+	public WriteBehindBuffer onFlush(Consumer<BulkPutResult> listener) {
+		flushListener = listener;
+		return this;
+	}
+
+	/**
+	 * Queue an entity to be written. If an unsaved write for the same key is already queued, the two are merged.
+	 * @param ent
+	 * @return false if the buffer is closed, in which case nothing was queued
+	 */
+	public boolean enqueue(Entity ent) {
+		closeLock.readLock().lock();
+
+		try {
+			if(closed)
+				return false;
+
+			enqueueOpen(ent);
+			return true;
+		}
+		finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	private void enqueueOpen(Entity ent) {
+		//backpressure, the caller pays for the flush
+		if(pending.size() >= capacity)
+			flush();
+
+		boolean versioned = db.isOptimisticLocking(ent.getType());
+
+		//taken here, on the thread that owns the entity, so a flush never reads it while it's being changed
+		Entity write = ent.detachWrite(versioned);
+		Key key = write.getKey();
+
+		Entity failed = failedWrites.remove(key);
+
+		pending.compute(key, (k, earlier) -> {
+			if(earlier != null) {
+				coalesced.increment();
+				write.absorbPendingWrites(earlier);
+			}
+
+			//it went out before anything pending now, so it goes under everything else
+			if(failed != null)
+				write.absorbPendingWrites(failed);
+
+			return write;
+		});
+
+		//a merged write may start from an older version than the entity moved on to
+		if(versioned)
+			ent.setVersion(write.isNew() ? 1 : write.getVersion() + 1);
+
+		enqueued.increment();
+		oldestEnqueue.compareAndSet(0, System.currentTimeMillis());
+
+		if(pending.size() >= flushSize)
+			triggerFlush();
+	}
+
+	/**
+	 * Write everything pending right now. Only one flush runs at a time; writes enqueued while it runs wait for the
+	 * next one.
+	 * @return a per-entity report of what was written
+	 */
+	public BulkPutResult flush() {
+		flushLock.lock();
+
+		try {
+			oldestEnqueue.set(0);
+
+			//failed writes whose key wasn't enqueued again go out with this flush, for the last time
+			Set<Entity> retries = Collections.newSetFromMap(new IdentityHashMap<>());
+
+			for(Key key : failedWrites.keySet()) {
+				Entity retry = failedWrites.remove(key);
+
+				if(retry == null)
+					continue;
+
+				retries.add(pending.merge(key, retry, (later, earlier) -> {
+					later.absorbPendingWrites(earlier);
+					return later;
+				}));
+			}
+
+			List<Entity> batch = new ArrayList<>(pending.size());
+
+			for(Map.Entry<Key, Entity> entry : pending.entrySet()) {
+				//only take what we saw, a newer write for the key stays for the next flush
+				if(pending.remove(entry.getKey(), entry.getValue()))
+					batch.add(entry.getValue());
+			}
+
+			if(batch.isEmpty())
+				return new BulkPutResult();
+
+			long start = System.nanoTime();
+			BulkPutResult result = toSourceResult(db.putNow(batch), retries);
+			lastFlushMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			flushes.increment();
+			flushed.add(result.getSucceeded().size());
+			failed.add(result.getFailures().size());
+
+			if(result.hasFailures())
+				Iris.warning("Write behind flush of " + batch.size() + " entities had " + result.getFailures().size() + " failures");
+
+			Consumer<BulkPutResult> listener = flushListener;
+			if(listener != null)
+				listener.accept(result);
+
+			return result;
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Report the written snapshots as the entities they were taken from, and keep the failed ones for a retry.
+	 * @param retries - writes that already failed once, which are not kept again
+	 */
+	private BulkPutResult toSourceResult(BulkPutResult written, Set<Entity> retries) {
+		BulkPutResult result = new BulkPutResult();
+
+		for(Entity write : written.getSucceeded())
+			result.addSucceeded(write.getSource());
+
+		for(Entity write : written.getSkipped())
+			result.addSkipped(write.getSource());
+
+		for(BulkPutResult.Failure failure : written.getFailures()) {
+			Entity write = failure.getEntity();
+
+			//retrying a conflict would only conflict again
+			if(false == failure.isVersionConflict() && false == retries.contains(write) && false == isClosed()) {
+				failedWrites.merge(write.getKey(), write, (older, newer) -> {
+					newer.absorbPendingWrites(older);
+					return newer;
+				});
+			}
+
+			result.addFailure(write.getSource(), failure.getCode(), failure.getMessage());
+		}
+
+		return result;
+	}
+
+	private void triggerFlush() {
+		if(scheduler == null) {
+			flush();
+			return;
+		}
+
+		//one queued flush is enough, it takes everything pending when it runs
+		if(flushScheduled.compareAndSet(false, true)) {
+			scheduler.execute(() -> {
+				flushScheduled.set(false);
+				flushQuietly();
+			});
+		}
+	}
+
+	private void flushIfOld() {
+		long oldest = oldestEnqueue.get();
+
+		if(oldest != 0 && System.currentTimeMillis() - oldest >= maxAgeMillis)
+			flushQuietly();
+	}
+
+	/**
+	 * Flush on the scheduler thread, where an exception would otherwise cancel the periodic task.
+	 */
+	private void flushQuietly() {
+		try {
+			flush();
+		}
+		catch(RuntimeException e) {
+			Iris.error("Write behind flush failed: " + e);
+		}
+	}
+
+	/**
+	 * Flush whatever is left, and stop flushing in the background.
+	 */
+	@Override
+	public void close() {
+		flushAndClose();
+	}
+
+	/**
+	 * Stop taking writes, wait for any enqueue already under way, and write everything left, including failed writes
+	 * still waiting for their retry. Anything that fails now is only reported.
+	 * @return a per-entity report of what this final flush wrote
+	 */
+	public BulkPutResult flushAndClose() {
+		closeLock.writeLock().lock();
+
+		try {
+			closed = true;
+		}
+		finally {
+			closeLock.writeLock().unlock();
+		}
+
+		if(scheduler != null)
+			scheduler.shutdown();
+
+		BulkPutResult result = flush();
+
+		//a background flush may have failed since, and nothing is left to retry it
+		failedWrites.clear();
+
+		return result;
+	}
+
+	public boolean isClosed() {
+		closeLock.readLock().lock();
+
+		try {
+			return closed;
+		}
+		finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return every write ever enqueued, including coalesced ones
+	 */
+	public long getEnqueuedCount() {
+		return enqueued.sum();
+	}
+
+	/**
+	 * @return writes that were merged into one already pending for the same key
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	public long getFlushCount() {
+		return flushes.sum();
+	}
+
+	/**
+	 * @return entities successfully written by a flush
+	 */
+	public long getFlushedCount() {
+		return flushed.sum();
+	}
+
+	/**
+	 * @return entities a flush failed to write
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	/**
+	 * @return how long the last flush took, in milliseconds
+	 */
+	public long getLastFlushMillis() {
+		return lastFlushMillis;
+	}
+}